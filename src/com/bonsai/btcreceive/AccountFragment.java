@@ -117,10 +117,127 @@ public class AccountFragment extends Fragment {
         if (mAccount == null)
             return;
 
-        updateChain(R.id.receive_table, mAccount.getReceiveChain());
-        updateChain(R.id.change_table, mAccount.getChangeChain());
+        mReceiveView.update(mAccount.getReceiveChain());
+        mChangeView.update(mAccount.getChangeChain());
     }
 
+    // Number of unused addresses shown past the last used one; the
+    // rest are collapsed behind a "more" row until it's tapped.
+    private static final int SHOW_UNUSED = 3;
+
+    // The rows of one chain's table and the data they show.  Updates
+    // only touch the rows whose data changed.
+    private class ChainView {
+        private final int				mTableId;
+        private final ArrayList<RowData>	mShown = new ArrayList<RowData>();
+        private final ArrayList<View>	mRows = new ArrayList<View>();
+        private TextView				mMoreRow = null;
+        private String					mUnitStr = null;
+        private boolean					mExpanded = false;
+        private boolean					mUpdating = false;
+        private HDChain					mPending = null;
+
+        public ChainView(int tableId) {
+            mTableId = tableId;
+        }
+
+        public void update(HDChain chain) {
+            // Only one task per chain at a time; remember the latest
+            // request and run it when the current one finishes.
+            if (mUpdating) {
+                mPending = chain;
+                return;
+            }
+            mUpdating = true;
+            new UpdateChainTask(this, mExpanded).execute(chain);
+        }
+
+        public void finished() {
+            mUpdating = false;
+            if (mPending != null) {
+                HDChain chain = mPending;
+                mPending = null;
+                update(chain);
+            }
+        }
+
+        public void apply(ArrayList<RowData> rowdata, int numCollapsed) {
+            TableLayout table =
+                (TableLayout) getActivity().findViewById(mTableId);
+
+            // In case we get called before the layout has happened.
+            if (table == null)
+                return;
+
+            // Child 0 is the header.
+            String unitStr = BaseWalletActivity.getBTCFmt().unitStr();
+            if (table.getChildCount() == 0 || !unitStr.equals(mUnitStr)) {
+                table.removeAllViews();
+                mShown.clear();
+                mRows.clear();
+                mMoreRow = null;
+                addAddressHeader(table);
+                mUnitStr = unitStr;
+            }
+
+            int nchanged = 0;
+            for (int ndx = 0; ndx < rowdata.size(); ++ndx) {
+                RowData rd = rowdata.get(ndx);
+                if (ndx < mShown.size()) {
+                    if (mShown.get(ndx).sameAs(rd))
+                        continue;
+                    setAddressRow(mRows.get(ndx), rd);
+                    mShown.set(ndx, rd);
+                }
+                else {
+                    View row = addAddressRow(mTableId, ndx, table, ndx + 1);
+                    setAddressRow(row, rd);
+                    mRows.add(row);
+                    mShown.add(rd);
+                }
+                ++nchanged;
+            }
+
+            // Drop rows we no longer show.
+            while (mShown.size() > rowdata.size()) {
+                int last = mShown.size() - 1;
+                table.removeView(mRows.get(last));
+                mRows.remove(last);
+                mShown.remove(last);
+                ++nchanged;
+            }
+
+            // The collapsed section always goes last.
+            if (numCollapsed > 0) {
+                if (mMoreRow == null) {
+                    mMoreRow = (TextView) LayoutInflater.from(getActivity())
+                        .inflate(R.layout.address_table_more, table, false);
+                    mMoreRow.setOnClickListener(new OnClickListener() {
+                            @Override
+                            public void onClick(View view) {
+                                mExpanded = true;
+                                updateChains();
+                            }
+                        });
+                }
+                table.removeView(mMoreRow);
+                table.addView(mMoreRow);
+                mMoreRow.setText(getString(R.string.account_more_unused,
+                                           numCollapsed));
+            }
+            else if (mMoreRow != null) {
+                table.removeView(mMoreRow);
+                mMoreRow = null;
+            }
+
+            mLogger.info(String.format("updateChain tableId=%d, %d rows changed",
+                                       mTableId, nchanged));
+        }
+    }
+
+    private ChainView mReceiveView = new ChainView(R.id.receive_table);
+    private ChainView mChangeView = new ChainView(R.id.change_table);
+
     private void addAddressHeader(TableLayout table) {
         TableRow row =
             (TableRow) LayoutInflater.from(getActivity())
@@ -132,14 +249,10 @@ public class AccountFragment extends Fragment {
         table.addView(row);
     }
 
-    private void addAddressRow(int tableId,
+    private View addAddressRow(int tableId,
                                int index,
                                TableLayout table,
-                               String path,
-                               String addr,
-                               String ntrans,
-                               String btcstr,
-                               String fiatstr) {
+                               int position) {
         TableRow row =
             (TableRow) LayoutInflater.from(getActivity())
             .inflate(R.layout.address_table_row, table, false);
@@ -156,32 +269,35 @@ public class AccountFragment extends Fragment {
                 }
             }); 
 
+        table.addView(row, position);
+        return row;
+    }
+
+    private void setAddressRow(View row, RowData rd) {
         {
             TextView tv = (TextView) row.findViewById(R.id.row_path);
-            tv.setText(path);
+            tv.setText(rd.mPath);
         }
 
         {
             TextView tv = (TextView) row.findViewById(R.id.row_addr);
-            tv.setText(addr);
+            tv.setText(rd.mAddr);
         }
 
         {
             TextView tv = (TextView) row.findViewById(R.id.row_ntrans);
-            tv.setText(ntrans);
+            tv.setText(rd.mNTrans);
         }
 
         {
             TextView tv = (TextView) row.findViewById(R.id.row_btc);
-            tv.setText(btcstr);
+            tv.setText(rd.mBTCStr);
         }
 
         {
             TextView tv = (TextView) row.findViewById(R.id.row_fiat);
-            tv.setText(fiatstr);
+            tv.setText(rd.mFiatStr);
         }
-
-        table.addView(row);
     }
 
     public void viewAddress(int tableId, int index) {
@@ -225,27 +341,56 @@ public class AccountFragment extends Fragment {
             mBTCStr = btcstr;
             mFiatStr = fiatstr;
         }
+
+        // True if the row would display the same.
+        public boolean sameAs(RowData rd) {
+            return mPath.equals(rd.mPath) &&
+                mAddr.equals(rd.mAddr) &&
+                mNTrans.equals(rd.mNTrans) &&
+                mBTCStr.equals(rd.mBTCStr) &&
+                mFiatStr.equals(rd.mFiatStr);
+        }
     }
 
-    private class UpdateChainTask extends AsyncTask<Object, Void, Void> {
+    private class UpdateChainTask extends AsyncTask<HDChain, Void, Void> {
 
-        private int tableId;
+        private final ChainView chainView;
+        private final boolean expanded;
+        private double fiatPerBTC;
         private ArrayList<RowData> rowdata;
+        private int numCollapsed = 0;
+
+        public UpdateChainTask(ChainView chainView, boolean expanded) {
+            this.chainView = chainView;
+            this.expanded = expanded;
+        }
 
         @Override
         protected void onPreExecute() {
+            fiatPerBTC = ((BaseWalletActivity) getActivity()).fiatPerBTC();
         }
 
-		protected Void doInBackground(Object... params)
+		protected Void doInBackground(HDChain... params)
         {
-            tableId = (Integer) params[0];
             rowdata = new ArrayList<RowData>();
             mLogger.info(String.format
                          ("UpdateChainTask %d doInBackground starting",
-                          tableId));
-            HDChain chain = (HDChain) params[1];
-            List<HDAddress> addrs = chain.getAddresses();
-            for (HDAddress addr : addrs) {
+                          chainView.mTableId));
+            List<HDAddress> addrs = params[0].getAddresses();
+
+            // Show everything up to a few past the last used address.
+            int numShown = addrs.size();
+            if (!expanded) {
+                int lastUsed = -1;
+                for (int ndx = 0; ndx < addrs.size(); ++ndx)
+                    if (addrs.get(ndx).numTrans() > 0)
+                        lastUsed = ndx;
+                numShown = Math.min(addrs.size(), lastUsed + 1 + SHOW_UNUSED);
+                numCollapsed = addrs.size() - numShown;
+            }
+
+            for (int ndx = 0; ndx < numShown; ++ndx) {
+                HDAddress addr = addrs.get(ndx);
                 String path = addr.getPath();
                 String addrstr = addr.getAbbrev();
                 String ntrans = String.format("%d", addr.numTrans());
@@ -253,52 +398,24 @@ public class AccountFragment extends Fragment {
                     .formatCol(addr.getBalance(), 0, true);
                 String fiat = String.format
                     ("%.02f", BaseWalletActivity.getBTCFmt()
-                     .fiatAtRate(addr.getBalance(),
-                                 ((BaseWalletActivity) getActivity())
-                                 .fiatPerBTC()));
+                     .fiatAtRate(addr.getBalance(), fiatPerBTC));
                 rowdata.add(new RowData(path, addrstr, ntrans, bal, fiat));
             }
             mLogger.info(String.format
                          ("UpdateChainTask %d doInBackground finished",
-                          tableId));
+                          chainView.mTableId));
 			return null;
         }
 
         @Override
         protected void onPostExecute(Void result) {
-            mLogger.info(String.format
-                         ("UpdateChainTask %d onPostExecute starting",
-                          tableId));
-
-            TableLayout table =
-                (TableLayout) getActivity().findViewById(tableId);
-
-            // In case we get called before the layout has happened.
-            if (table == null)
-                return;
-
-            // Clear any existing table content.
-            table.removeAllViews();
-
-            mLogger.info(String.format("updateChain tableId=%d", tableId));
-
-            addAddressHeader(table);
-
-            // Read all of the addresses.  Presume order is correct ...
-            int ndx = 0;
-            for (RowData rd : rowdata) {
-                addAddressRow(tableId, ndx++, table,
-                              rd.mPath, rd.mAddr, rd.mNTrans,
-                              rd.mBTCStr, rd.mFiatStr);
+            try {
+                if (getActivity() != null)
+                    chainView.apply(rowdata, numCollapsed);
+            }
+            finally {
+                chainView.finished();
             }
-
-            mLogger.info(String.format
-                         ("UpdateChainTask %d onPostExecute finished",
-                          tableId));
         }
     }
-
-    private void updateChain(int tableId, HDChain chain) {
-        new UpdateChainTask().execute(tableId, chain);
-    }
 }
@@ -0,0 +1,118 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.bonsai.btcreceive;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+
+// Publishes the median of several rate sources.
+//
+// The sources are queried concurrently and each one gets
+// SOURCE_TIMEOUT_MSECS to answer; a slow or failing source is left
+// out of that round.  Callers always get the cached rate right away
+// while the next round runs in the background.
+//
+public class AggregateRateUpdater extends PollingRateUpdater {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(AggregateRateUpdater.class);
+
+    private static final long SOURCE_TIMEOUT_MSECS = 10 * 1000;
+
+    private final List<RateSource>	mSources;
+    private final ExecutorService	mExecutor;
+
+    public AggregateRateUpdater(Context context,
+                                String code,
+                                RateSource... sources) {
+        super(context, "AggregateRateUpdater", code);
+        mSources = Arrays.asList(sources);
+        mExecutor = Executors.newFixedThreadPool
+            (sources.length, new ThreadFactory() {
+                    public Thread newThread(Runnable rr) {
+                        Thread thread = new Thread(rr, "RateSource fetch");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    public void stopUpdater() {
+        super.stopUpdater();
+        mExecutor.shutdownNow();
+    }
+
+    protected Double fetchLatestRate() throws IOException {
+        List<Future<Double>> futures = new ArrayList<Future<Double>>();
+        for (final RateSource source : mSources)
+            futures.add(mExecutor.submit(new Callable<Double>() {
+                    public Double call() throws IOException {
+                        return source.fetchCurrent();
+                    }
+                }));
+
+        // All sources share one deadline.
+        long deadline = System.currentTimeMillis() + SOURCE_TIMEOUT_MSECS;
+        ArrayList<Double> rates = new ArrayList<Double>();
+        for (int ii = 0; ii < futures.size(); ++ii) {
+            Future<Double> future = futures.get(ii);
+            String name = mSources.get(ii).getName();
+            try {
+                long remaining =
+                    Math.max(deadline - System.currentTimeMillis(), 0);
+                double rate = future.get(remaining, TimeUnit.MILLISECONDS);
+                if (rate > 0.0)
+                    rates.add(rate);
+            } catch (TimeoutException ex) {
+                mLogger.warn(name + " timed out");
+                future.cancel(true);
+            } catch (ExecutionException ex) {
+                mLogger.warn(name + " failed: " + ex.getCause().toString());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted");
+            }
+        }
+
+        if (rates.isEmpty())
+            throw new IOException("no rate sources answered");
+
+        return median(rates);
+    }
+
+    private static double median(ArrayList<Double> rates) {
+        Collections.sort(rates);
+        int mid = rates.size() / 2;
+        if (rates.size() % 2 == 1)
+            return rates.get(mid);
+        return (rates.get(mid - 1) + rates.get(mid)) / 2.0;
+    }
+}
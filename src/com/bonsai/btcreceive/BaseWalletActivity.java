@@ -62,6 +62,8 @@ public abstract class BaseWalletActivity extends ActionBarActivity {
                 mWalletService =
                     ((WalletService.WalletServiceBinder) binder).getService();
                 mLogger.info("WalletService bound");
+                // The user has seen the events now.
+                mWalletService.clearEventSummary();
                 onWalletServiceBound();
                 updateRate();
                 updateWalletStatus();
@@ -223,6 +225,13 @@ public abstract class BaseWalletActivity extends ActionBarActivity {
         return mFiatPerBTC;
     }
 
+    // Returns msecs since the fiat rate was confirmed, or -1 if unknown.
+    public long fiatRateAge() {
+        if (mWalletService == null)
+            return -1;
+        return mWalletService.getRateAge();
+    }
+
     protected DialogFragment showErrorDialog(String msg) {
         DialogFragment df = new MyDialogFragment();
         Bundle args = new Bundle();
@@ -15,6 +15,9 @@
 
 package com.bonsai.btcreceive;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.math.BigInteger;
 import java.util.LinkedList;
 import java.util.List;
@@ -84,6 +87,28 @@ public class HDAccount {
         }
     }
 
+    public HDAccount(NetworkParameters params,
+                     DeterministicKey accountKey,
+                     int version,
+                     DataInputStream dis) throws IOException {
+
+        mParams = params;
+        mAccountKey = accountKey;
+
+        mAccountName = dis.readUTF();
+
+        mReceiveChain = new HDChain(mParams, mAccountKey, version, dis);
+        mChangeChain = new HDChain(mParams, mAccountKey, version, dis);
+
+        mLogger.info("deserialized account " + mAccountName);
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeUTF(mAccountName);
+        mReceiveChain.write(dos);
+        mChangeChain.write(dos);
+    }
+
     public HDAccount(NetworkParameters params,
                      DeterministicKey accountKey,
                      String accountName) {
@@ -131,6 +156,29 @@ public class HDAccount {
         return mChangeChain.hasPubKey(pubkey, pubkeyhash);
     }
 
+    // Returns the address matching the key (if present) in either
+    // chain.
+    public HDAddress lookup(byte[] pubkey, byte[] pubkeyhash) {
+        HDAddress hda = mReceiveChain.lookup(pubkey, pubkeyhash);
+        if (hda == null)
+            hda = mChangeChain.lookup(pubkey, pubkeyhash);
+        return hda;
+    }
+
+    public int numAddrs() {
+        return mReceiveChain.numAddrs() + mChangeChain.numAddrs();
+    }
+
+    // Returns the earliest block time any address in this account was
+    // used in, Long.MAX_VALUE if none were used, or -1 if unknown.
+    public long earliestActivityTime() {
+        long receiveTime = mReceiveChain.earliestActivityTime();
+        long changeTime = mChangeChain.earliestActivityTime();
+        if (receiveTime < 0 || changeTime < 0)
+            return -1;
+        return Math.min(receiveTime, changeTime);
+    }
+
     public String xpubstr() {
         return mAccountKey.serializePubB58();
     }
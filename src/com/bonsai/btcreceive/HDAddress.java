@@ -15,6 +15,9 @@
 
 package com.bonsai.btcreceive;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.List;
 
@@ -29,6 +32,7 @@ import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.Base58;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
+import com.google.bitcoin.core.Utils;
 import com.google.bitcoin.crypto.DeterministicKey;
 import com.google.bitcoin.crypto.HDKeyDerivation;
 import com.google.bitcoin.crypto.KeyCrypter;
@@ -44,16 +48,27 @@ public class HDAddress {
     private NetworkParameters	mParams;
     private int					mAddrNum;
     private String				mPath;
+    private byte[]				mPrvBytes;
     private byte[]				mPubBytes;
-    private ECKey				mECKey;
-    private byte[]				mPubKey;
     private byte[]				mPubKeyHash;
-    private Address				mAddress;
+
+    // These are expensive and not needed to match transactions;
+    // they are built on first use, see ecKey() and address().
+    private ECKey				mECKey = null;
+    private Address				mAddress = null;
 
     private int				mNumTrans;
     private long			mBalance;
     private long			mAvailable;		// Available for spending.
 
+    // Height and time of the first block we saw this address used
+    // in, -1 if unknown.
+    private int				mFirstSeenHeight = -1;
+    private long			mFirstSeenTime = -1;
+
+    // Set when the counters change, cleared when they are persisted.
+    private boolean			mDirty = false;
+
     public HDAddress(NetworkParameters params,
                      DeterministicKey chainKey,
                      JSONObject addrNode)
@@ -64,23 +79,15 @@ public class HDAddress {
         mAddrNum = addrNode.getInt("addrNum");
         mPath = addrNode.getString("path");
 
-        // Derive ECKey.
-        byte[] prvBytes = null;
+        // Only the public key and it's hash are needed up front, the
+        // ECKey and Address are materialized lazily.
+        mPrvBytes = null;
         try {
             mPubBytes = Base58.decode(addrNode.getString("pubBytes"));
         } catch (AddressFormatException ex) {
             throw new RuntimeException("failed to decode pubBytes");
         }
-        
-        mECKey = new ECKey(prvBytes, mPubBytes);
-
-        // Set creation time to BTCReceive epoch.
-        mECKey.setCreationTimeSeconds(EPOCH);
-
-        // Derive public key, public hash and address.
-        mPubKey = mECKey.getPubKey();
-        mPubKeyHash = mECKey.getPubKeyHash();
-        mAddress = mECKey.toAddress(mParams);
+        mPubKeyHash = Utils.sha256hash160(mPubBytes);
 
         // Initialize transaction count and balance.  If we don't have
         // a persisted available amount, presume it is all available.
@@ -89,7 +96,7 @@ public class HDAddress {
         mAvailable = addrNode.has("available") ?
             addrNode.getLong("available") : mBalance;
 
-        mLogger.info("read address " + mPath + ": " + mAddress.toString());
+        mLogger.debug("read address " + mPath);
     }
 
     public JSONObject dumps() {
@@ -110,6 +117,45 @@ public class HDAddress {
         }
     }
 
+    // Binary form, see HDReceiver.persist.  The records in a chain
+    // are fixed width; all keys in a chain share the same length.
+    public HDAddress(NetworkParameters params,
+                     DeterministicKey chainKey,
+                     int version,
+                     int keyLen,
+                     DataInputStream dis)
+        throws IOException {
+
+        mParams = params;
+
+        mAddrNum = dis.readInt();
+        mPath = chainKey.getPath() + "/" + mAddrNum;
+
+        mPrvBytes = null;
+        mPubBytes = new byte[keyLen];
+        dis.readFully(mPubBytes);
+        mPubKeyHash = Utils.sha256hash160(mPubBytes);
+
+        mNumTrans = dis.readInt();
+        mBalance = dis.readLong();
+        mAvailable = dis.readLong();
+
+        if (version >= 3) {
+            mFirstSeenHeight = dis.readInt();
+            mFirstSeenTime = dis.readLong();
+        }
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(mAddrNum);
+        dos.write(mPubBytes);
+        dos.writeInt(mNumTrans);
+        dos.writeLong(mBalance);
+        dos.writeLong(mAvailable);
+        dos.writeInt(mFirstSeenHeight);
+        dos.writeLong(mFirstSeenTime);
+    }
+
     public HDAddress(NetworkParameters params,
                      DeterministicKey chainKey,
                      int addrnum) {
@@ -121,41 +167,50 @@ public class HDAddress {
             HDKeyDerivation.deriveChildKey(chainKey, addrnum);
         mPath = addrKey.getPath();
 
-        // Derive ECKey.
-        byte[] prvBytes = addrKey.getPrivKeyBytes();
+        // Save the key bytes, the ECKey is materialized lazily.
+        mPrvBytes = addrKey.getPrivKeyBytes();
         mPubBytes = addrKey.getPubKeyBytes(); // Expensive, save.
-        mECKey = new ECKey(prvBytes, mPubBytes);
-
-        // Set creation time to now.
-        mECKey.setCreationTimeSeconds(EPOCH);
-
-        // Derive path, public key, public hash and address.
-        mPubKey = mECKey.getPubKey();
-        mPubKeyHash = mECKey.getPubKeyHash();
-        mAddress = mECKey.toAddress(mParams);
+        mPubKeyHash = Utils.sha256hash160(mPubBytes);
 
         // Initialize transaction count and balance.
         mNumTrans = 0;
         mBalance = 0;
         mAvailable = 0;
 
-        mLogger.info("created address " + mPath + ": " + mAddress.toString());
+        mLogger.info("created address " + mPath);
+    }
+
+    private synchronized ECKey ecKey() {
+        if (mECKey == null) {
+            mECKey = new ECKey(mPrvBytes, mPubBytes);
+
+            // Set creation time to BTCReceive epoch.
+            mECKey.setCreationTimeSeconds(EPOCH);
+        }
+        return mECKey;
+    }
+
+    private synchronized Address address() {
+        if (mAddress == null)
+            mAddress = new Address(mParams, mPubKeyHash);
+        return mAddress;
     }
 
     public void gatherKey(KeyCrypter keyCrypter,
                           KeyParameter aesKey,
                           long creationTime,
                           List<ECKey> keys) {
-        mECKey.setCreationTimeSeconds(creationTime);
+        ECKey eckey = ecKey();
+        eckey.setCreationTimeSeconds(creationTime);
         if (keyCrypter == null)
-            keys.add(mECKey);
+            keys.add(eckey);
         else
-            keys.add(mECKey.encrypt(keyCrypter, aesKey));
+            keys.add(eckey.encrypt(keyCrypter, aesKey));
     }
 
     public boolean isMatch(byte[] pubkey, byte[] pubkeyhash) {
         if (pubkey != null)
-            return Arrays.equals(pubkey, mPubKey);
+            return Arrays.equals(pubkey, mPubBytes);
         else if (pubkeyhash != null)
             return Arrays.equals(pubkeyhash, mPubKeyHash);
         else
@@ -173,6 +228,7 @@ public class HDAddress {
 
         ++mNumTrans;
         mBalance += value;
+        mDirty = true;
 
         if (avail)
             mAvailable += value;
@@ -182,20 +238,83 @@ public class HDAddress {
 
     public void applyInput(byte[] pubkey, long value) {
         // Does this input apply to this address?
-        if (!Arrays.equals(pubkey, mPubKey))
+        if (!Arrays.equals(pubkey, mPubBytes))
             return;
 
         ++mNumTrans;
         mBalance -= value;
         mAvailable -= value;
+        mDirty = true;
 
         mLogger.debug(mPath + " matched input of " + Long.toString(value));
     }
 
+    // Adjusts the counters by a previously computed contribution.
+    // Used by the incremental accounting in HDReceiver, which backs
+    // out a transaction's contribution by applying the negation.
+    public void applyDelta(int numTrans, long balance, long available) {
+        mNumTrans += numTrans;
+        mBalance += balance;
+        mAvailable += available;
+        mDirty = true;
+    }
+
+    // Restores persisted counters, used when replaying the journal.
+    public void setCounters(int numTrans, long balance, long available) {
+        mNumTrans = numTrans;
+        mBalance = balance;
+        mAvailable = available;
+    }
+
+    // Restores the persisted first-seen block, used when replaying
+    // the journal.
+    public void setFirstSeen(int height, long time) {
+        mFirstSeenHeight = height;
+        mFirstSeenTime = time;
+    }
+
+    // Records that this address was used in a block, keeping the
+    // earliest one.
+    public void noteSeen(int height, long time) {
+        if (mFirstSeenHeight < 0 || height < mFirstSeenHeight) {
+            mFirstSeenHeight = height;
+            mFirstSeenTime = time;
+            mDirty = true;
+        }
+    }
+
+    public int getFirstSeenHeight() {
+        return mFirstSeenHeight;
+    }
+
+    public long getFirstSeenTime() {
+        return mFirstSeenTime;
+    }
+
+    public boolean isDirty() {
+        return mDirty;
+    }
+
+    public void clearDirty() {
+        mDirty = false;
+    }
+
+    public int getAddrNum() {
+        return mAddrNum;
+    }
+
     public String getPath() {
         return mPath;
     }
 
+    public byte[] getPubKey() {
+        return mPubBytes;
+    }
+
+    public byte[] getPubKeyHash() {
+        return mPubKeyHash;
+    }
+
     public long getBalance() {
         return mBalance;
     }
@@ -205,15 +324,15 @@ public class HDAddress {
     }
     
     public String getAddressString() {
-        return mAddress.toString();
+        return address().toString();
     }
 
     public String getAbbrev() {
-        return mAddress.toString().substring(0, 8) + "...";
+        return address().toString().substring(0, 8) + "...";
     }
 
     public String getPrivateKeyString() {
-        return mECKey.getPrivateKeyEncoded(mParams).toString();
+        return ecKey().getPrivateKeyEncoded(mParams).toString();
     }
 
     public int numTrans() {
@@ -221,6 +340,8 @@ public class HDAddress {
     }
 
     public void clearBalance() {
+        if (mNumTrans != 0 || mBalance != 0 || mAvailable != 0)
+            mDirty = true;
         mNumTrans = 0;
         mBalance = 0;
         mAvailable = 0;
@@ -240,10 +361,10 @@ public class HDAddress {
     }
 
     public Address getAddress() {
-        return mAddress;
+        return address();
     }
 
     public boolean matchAddress(Address addr) {
-        return mAddress.toString().equals(addr.toString());
+        return address().toString().equals(addr.toString());
     }
 }
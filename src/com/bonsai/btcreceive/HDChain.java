@@ -15,9 +15,21 @@
 
 package com.bonsai.btcreceive;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -47,9 +59,20 @@ public class HDChain {
 
     private ArrayList<HDAddress>	mAddrs;
 
+    // Indexes from the public key and the public key hash to the
+    // address, so matching a transaction output doesn't have to walk
+    // the whole chain.  ByteBuffer compares by content.
+    private HashMap<ByteBuffer, HDAddress>	mPubKeyIndex;
+    private HashMap<ByteBuffer, HDAddress>	mPubKeyHashIndex;
+
     static private final int	DESIRED_MARGIN = 32;
     static private final int	MAX_UNUSED_GAP = 8;
 
+    // Below this many addresses it isn't worth going parallel.
+    static private final int	MIN_PARALLEL_DERIVE = 4;
+
+    static private ExecutorService	sDeriveExecutor = null;
+
     public HDChain(NetworkParameters params,
                    DeterministicKey accountKey,
                    JSONObject chainNode)
@@ -68,10 +91,12 @@ public class HDChain {
                      mChainKey.getPath());
         
         mAddrs = new ArrayList<HDAddress>();
+        mPubKeyIndex = new HashMap<ByteBuffer, HDAddress>();
+        mPubKeyHashIndex = new HashMap<ByteBuffer, HDAddress>();
         JSONArray addrobjs = chainNode.getJSONArray("addrs");
         for (int ii = 0; ii < addrobjs.length(); ++ii) {
             JSONObject addrNode = addrobjs.getJSONObject(ii);
-            mAddrs.add(new HDAddress(mParams, mChainKey, addrNode));
+            addAddress(new HDAddress(mParams, mChainKey, addrNode));
         }
     }
 
@@ -95,6 +120,50 @@ public class HDChain {
         }
     }
 
+    public HDChain(NetworkParameters params,
+                   DeterministicKey accountKey,
+                   int version,
+                   DataInputStream dis)
+        throws IOException {
+
+        mParams = params;
+
+        mChainName = dis.readUTF();
+        mIsReceive = dis.readBoolean();
+
+        int chainnum = mIsReceive ? 0 : 1;
+
+        mChainKey = HDKeyDerivation.deriveChildKey(accountKey, chainnum);
+
+        mLogger.info("deserialized HDChain " + mChainName + ": " +
+                     mChainKey.getPath());
+
+        int numAddrs = dis.readInt();
+        int keyLen = dis.readUnsignedByte();
+
+        mAddrs = new ArrayList<HDAddress>(numAddrs);
+        mPubKeyIndex = new HashMap<ByteBuffer, HDAddress>();
+        mPubKeyHashIndex = new HashMap<ByteBuffer, HDAddress>();
+        for (int ii = 0; ii < numAddrs; ++ii)
+            addAddress(new HDAddress(mParams, mChainKey, version, keyLen, dis));
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeUTF(mChainName);
+        dos.writeBoolean(mIsReceive);
+
+        // All of our keys come from the same derivation so they are
+        // the same length; write it once for the chain.
+        int keyLen = mAddrs.isEmpty() ? 0 : mAddrs.get(0).getPubKey().length;
+        dos.writeInt(mAddrs.size());
+        dos.writeByte(keyLen);
+        for (HDAddress hda : mAddrs) {
+            if (hda.getPubKey().length != keyLen)
+                throw new IOException("mixed key lengths in " + mChainName);
+            hda.write(dos);
+        }
+    }
+
     public HDChain(NetworkParameters params,
                    DeterministicKey accountKey,
                    boolean isReceive,
@@ -111,8 +180,97 @@ public class HDChain {
         mLogger.info("created HDChain " + mChainName);
         
         mAddrs = new ArrayList<HDAddress>();
-        for (int ii = 0; ii < numAddrs; ++ii)
-            mAddrs.add(new HDAddress(mParams, mChainKey, ii));
+        mPubKeyIndex = new HashMap<ByteBuffer, HDAddress>();
+        mPubKeyHashIndex = new HashMap<ByteBuffer, HDAddress>();
+        for (HDAddress hda : deriveAddresses(mParams, mChainKey, 0, numAddrs))
+            addAddress(hda);
+    }
+
+    private static synchronized ExecutorService deriveExecutor() {
+        if (sDeriveExecutor == null) {
+            int nthreads = Runtime.getRuntime().availableProcessors();
+            sDeriveExecutor = Executors.newFixedThreadPool
+                (nthreads, new ThreadFactory() {
+                        public Thread newThread(Runnable rr) {
+                            Thread thread = new Thread(rr, "HDChain derive");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return sDeriveExecutor;
+    }
+
+    // Derives the addresses with indexes [first, first + count) from
+    // the chain key, spreading the work across all available cores.
+    // The returned list is in index order.
+    public static List<HDAddress> deriveAddresses
+        (final NetworkParameters params,
+         final DeterministicKey chainKey,
+         final int first,
+         final int count) {
+
+        final HDAddress[] addrs = new HDAddress[count];
+
+        int nthreads = Runtime.getRuntime().availableProcessors();
+        if (count < MIN_PARALLEL_DERIVE || nthreads < 2) {
+            for (int ii = 0; ii < count; ++ii)
+                addrs[ii] = new HDAddress(params, chainKey, first + ii);
+            return Arrays.asList(addrs);
+        }
+
+        // The parent public key is computed lazily; do it once here
+        // rather than racing in the workers.
+        chainKey.getPubKeyBytes();
+
+        // Each worker fills a contiguous slice of the result.
+        ArrayList<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        int slice = (count + nthreads - 1) / nthreads;
+        for (int beg = 0; beg < count; beg += slice) {
+            final int lo = beg;
+            final int hi = Math.min(beg + slice, count);
+            tasks.add(new Callable<Void>() {
+                    public Void call() {
+                        for (int ii = lo; ii < hi; ++ii)
+                            addrs[ii] =
+                                new HDAddress(params, chainKey, first + ii);
+                        return null;
+                    }
+                });
+        }
+
+        try {
+            for (Future<Void> future : deriveExecutor().invokeAll(tasks))
+                future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("address derivation interrupted");
+        } catch (ExecutionException ex) {
+            String msg = "address derivation failed: " + ex.getCause();
+            mLogger.error(msg);
+            throw new RuntimeException(msg);
+        }
+
+        return Arrays.asList(addrs);
+    }
+
+    // All additions to mAddrs go through here to keep the indexes
+    // in sync.
+    private void addAddress(HDAddress hda) {
+        mAddrs.add(hda);
+        mPubKeyIndex.put(ByteBuffer.wrap(hda.getPubKey()), hda);
+        mPubKeyHashIndex.put(ByteBuffer.wrap(hda.getPubKeyHash()), hda);
+    }
+
+    // Same matching rules as HDAddress.isMatch: the pubkey wins if
+    // present, otherwise the pubkey hash is used.
+    public HDAddress lookup(byte[] pubkey, byte[] pubkeyhash) {
+        if (pubkey != null)
+            return mPubKeyIndex.get(ByteBuffer.wrap(pubkey));
+        else if (pubkeyhash != null)
+            return mPubKeyHashIndex.get(ByteBuffer.wrap(pubkeyhash));
+        else
+            return null;
     }
 
     public static int maxSafeExtend() {
@@ -143,12 +301,16 @@ public class HDChain {
                             byte[] pubkeyhash,
                             long value,
                             boolean avail) {
-        for (HDAddress hda : mAddrs)
+        HDAddress hda = lookup(pubkey, pubkeyhash);
+        if (hda != null)
             hda.applyOutput(pubkey, pubkeyhash, value, avail);
     }
 
     public void applyInput(byte[] pubkey, long value) {
-        for (HDAddress hda : mAddrs)
+        if (pubkey == null)
+            return;
+        HDAddress hda = mPubKeyIndex.get(ByteBuffer.wrap(pubkey));
+        if (hda != null)
             hda.applyInput(pubkey, value);
     }
 
@@ -185,11 +347,23 @@ public class HDChain {
     }
 
     public boolean hasPubKey(byte[] pubkey, byte[] pubkeyhash) {
+        return lookup(pubkey, pubkeyhash) != null;
+    }
+
+    // Returns the earliest block time any address on this chain was
+    // used in, Long.MAX_VALUE if none were used, or -1 if a used
+    // address has no recorded first block.
+    public long earliestActivityTime() {
+        long earliest = Long.MAX_VALUE;
         for (HDAddress hda : mAddrs) {
-            if (hda.isMatch(pubkey, pubkeyhash))
-                return true;
+            if (hda.isUnused())
+                continue;
+            long time = hda.getFirstSeenTime();
+            if (time < 0)
+                return -1;
+            earliest = Math.min(earliest, time);
         }
-        return false;
+        return earliest;
     }
 
     private int marginSize() {
@@ -226,11 +400,11 @@ public class HDChain {
             long now = Utils.now().getTime() / 1000;
 
             // Add the addresses ...
-            int newSize = mAddrs.size() + numAdd;
+            List<HDAddress> newAddrs =
+                deriveAddresses(mParams, mChainKey, mAddrs.size(), numAdd);
             ArrayList<ECKey> keys = new ArrayList<ECKey>();
-            for (int ii = mAddrs.size(); ii < newSize; ++ii) {
-                HDAddress hda = new HDAddress(mParams, mChainKey, ii);
-                mAddrs.add(hda);
+            for (HDAddress hda : newAddrs) {
+                addAddress(hda);
                 hda.gatherKey(keyCrypter, aesKey, now, keys);
             }
             mLogger.info(String.format("adding %d keys", keys.size()));
@@ -243,11 +417,11 @@ public class HDChain {
     // Finds an address (if present) and returns a description
     // of it's wallet location.
     public HDAddressDescription findAddress(Address addr) {
-        for (HDAddress hda : mAddrs) {
-            if (hda.matchAddress(addr)) {
-                // Caller will fill in the accountId.
-                return new HDAddressDescription(this, hda);
-            }
+        HDAddress hda =
+            mPubKeyHashIndex.get(ByteBuffer.wrap(addr.getHash160()));
+        if (hda != null && hda.matchAddress(addr)) {
+            // Caller will fill in the accountId.
+            return new HDAddressDescription(this, hda);
         }
         return null;
     }
@@ -15,14 +15,26 @@
 
 package com.bonsai.btcreceive;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
-import java.io.FileReader;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -40,8 +52,8 @@ import com.google.bitcoin.core.Base58;
 import com.google.bitcoin.core.ECKey;
 import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.ScriptException;
+import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Transaction;
-import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.core.TransactionInput;
 import com.google.bitcoin.core.TransactionOutput;
@@ -69,6 +81,58 @@ public class HDReceiver {
         return filePrefix + ".hdreceive";
     }
 
+    // Binary persistence format header.  Older versions of the file
+    // are JSON, which always starts with '{'.
+    private static final int	PERSIST_MAGIC = 0x48445242;	// "HDRB"
+    private static final int	PERSIST_VERSION = 3;
+
+    // Journal of per-address counter changes since the last snapshot.
+    // The header names the snapshot generation it applies to; each
+    // record is fixed width and carries a CRC so a torn final record
+    // can be detected and dropped.
+    private static final int	JOURNAL_MAGIC = 0x48444a32;	// "HDJ2"
+    private static final int	JOURNAL_HEADER_SIZE = 12;
+    private static final int	JOURNAL_RECORD_SIZE = 41;
+
+    // Journal format written by version 2, without the first-seen
+    // block.  Still replayed, but the next persist is a snapshot.
+    private static final int	JOURNAL_V1_MAGIC = 0x48444a4c;	// "HDJL"
+    private static final int	JOURNAL_V1_RECORD_SIZE = 29;
+
+    // Once the journal grows past this we write a new snapshot.
+    private static final long	JOURNAL_COMPACT_BYTES = 64 * 1024;
+
+    private static final Metrics.Histogram sRestoreTime =
+        Metrics.histogram("hdreceiver.restore_usecs");
+    private static final Metrics.Histogram sReplayTime =
+        Metrics.histogram("hdreceiver.replay_usecs");
+    private static final Metrics.Histogram sPersistTime =
+        Metrics.histogram("hdreceiver.persist_usecs");
+    private static final Metrics.Histogram sPersistBytes =
+        Metrics.histogram("hdreceiver.persist_bytes");
+    private static final Metrics.Counter sSnapshots =
+        Metrics.counter("hdreceiver.snapshots");
+    private static final Metrics.Counter sJournalAppends =
+        Metrics.counter("hdreceiver.journal_appends");
+    private static final Metrics.Histogram sApplyTime =
+        Metrics.histogram("hdreceiver.apply_usecs");
+    private static final Metrics.Counter sTxChanges =
+        Metrics.counter("hdreceiver.tx_changes");
+    private static final Metrics.Histogram sMarginTime =
+        Metrics.histogram("hdreceiver.margin_usecs");
+    private static final Metrics.Counter sKeysAdded =
+        Metrics.counter("hdreceiver.keys_added");
+
+    private boolean		mJournaling = true;
+    private long		mGeneration = 0;
+    private long		mJournalSize = 0;
+    private int			mSnapshotNumAddrs = -1;	// Forces first snapshot.
+    private boolean		mForceSnapshot = false;
+
+    public static String journalPath(String filePrefix) {
+        return persistPath(filePrefix) + ".log";
+    }
+
     // Create an HDReceiver from persisted file data.
     public static HDReceiver restore(Context ctxt,
                                      NetworkParameters params,
@@ -78,10 +142,33 @@ public class HDReceiver {
                                      KeyParameter aesKey)
         throws InvalidCipherTextException, IOException {
 
+        long startTime = Metrics.startTimer();
+        byte[] bytes = readPersisted(directory, filePrefix);
+
+        if (isBinary(bytes)) {
+            DataInputStream dis =
+                new DataInputStream(new ByteArrayInputStream(bytes));
+            dis.readInt();	// magic
+            int version = dis.readInt();
+            if (version < 1 || version > PERSIST_VERSION)
+                throw new IOException("unsupported HDReceiver version " +
+                                      version);
+            HDReceiver hdrecvr = new HDReceiver(ctxt, params, directory,
+                                                filePrefix, version, dis);
+            hdrecvr.replayJournal();
+            sRestoreTime.recordSince(startTime);
+            return hdrecvr;
+        }
+
+        // Legacy JSON file, it will be rewritten in the binary
+        // format the next time we persist.
         try {
-            JSONObject node = deserialize(directory, filePrefix);
+            JSONObject node = deserialize(bytes);
 
-            return new HDReceiver(ctxt, params, directory, filePrefix, node);
+            HDReceiver hdrecvr =
+                new HDReceiver(ctxt, params, directory, filePrefix, node);
+            sRestoreTime.recordSince(startTime);
+            return hdrecvr;
         }
         catch (JSONException ex) {
             String msg = "trouble deserializing wallet: " + ex.toString();
@@ -98,60 +185,110 @@ public class HDReceiver {
         }
     }
 
-    // Deserialize the wallet data.
-    public static JSONObject deserialize(File dir, String prefix)
-        throws IOException, JSONException {
+    private static boolean isBinary(byte[] bytes) {
+        if (bytes.length < 4)
+            return false;
+        int magic = ((bytes[0] & 0xff) << 24) | ((bytes[1] & 0xff) << 16) |
+            ((bytes[2] & 0xff) << 8) | (bytes[3] & 0xff);
+        return magic == PERSIST_MAGIC;
+    }
+
+    // Read the persisted wallet file.
+    public static byte[] readPersisted(File dir, String prefix)
+        throws IOException {
 
         String path = persistPath(prefix);
         mLogger.info("restoring HDReceiver from " + path);
         try {
-            File file = new File(dir, path);
-            int len = (int) file.length();
+            return readFile(new File(dir, path));
+        } catch (IOException ex) {
+            mLogger.warn("trouble reading " + path + ": " + ex.toString());
+            throw ex;
+        }
+    }
 
-            BufferedReader br = null;
-            StringBuilder sb = new StringBuilder();
+    private static byte[] readFile(File file) throws IOException {
+        byte[] bytes = new byte[(int) file.length()];
+        DataInputStream dis = null;
+        try {
+            dis = new DataInputStream(new FileInputStream(file));
+            dis.readFully(bytes);
+            return bytes;
+        }
+        finally {
             try {
-                String currentLine;
-                br = new BufferedReader(new FileReader(file));
-                while ((currentLine = br.readLine()) != null)
-                    sb.append(currentLine);
-            }
-            finally {
-                try {
-                    if (br != null)
-                        br.close();
-                }
-                catch (IOException ex) {
-                    String msg = "problem closing file: " + ex.toString();
-                    mLogger.error(msg);
-                    throw new RuntimeException(msg);
-                }
+                if (dis != null)
+                    dis.close();
             }
-
-            String jsonstr = sb.toString();
-
-            /*
-            String msg = jsonstr;
-            while (msg.length() > 1024) {
-                String chunk = msg.substring(0, 1024);
-                mLogger.error(chunk);
-                msg = msg.substring(1024);
+            catch (IOException ex) {
+                String msg = "problem closing file: " + ex.toString();
+                mLogger.error(msg);
+                throw new RuntimeException(msg);
             }
-            mLogger.error(msg);
-            */
-            
-            JSONObject node = new JSONObject(jsonstr);
-            return node;
+        }
+    }
 
-        } catch (IOException ex) {
-            mLogger.warn("trouble reading " + path + ": " + ex.toString());
-            throw ex;
+    // Deserialize legacy JSON wallet data.
+    public static JSONObject deserialize(byte[] bytes) throws JSONException {
+        try {
+            String jsonstr = new String(bytes, Charset.forName("UTF-8"));
+            return new JSONObject(jsonstr);
         } catch (RuntimeException ex) {
             mLogger.warn("trouble restoring wallet: " + ex.toString());
             throw ex;
         }
     }
 
+    // This signature is used when the receiver is restored from the
+    // binary format.
+    public HDReceiver(Context ctxt,
+                      NetworkParameters params,
+                      File dir,
+                      String prefix,
+                      int version,
+                      DataInputStream dis)
+        throws IOException {
+
+        mParams = params;
+        mDirectory = dir;
+        mFilePrefix = prefix;
+
+        // Version 1 files predate the journal.
+        mGeneration = version >= 2 ? dis.readLong() : 0;
+
+        String xpubstr = dis.readUTF();
+        try {
+            mAccountKey = WalletUtil.createMasterPubKeyFromPubB58(xpubstr);
+        }
+        catch (Exception ex) {
+            throw new IOException("trouble decoding xpub: " + ex.toString());
+        }
+
+        // See WORKAROUND below.
+        byte[] privKeyBytes = new byte[dis.readUnsignedByte()];
+        dis.readFully(privKeyBytes);
+        mWorkaroundKey = new ECKey(privKeyBytes, null);
+
+        mAccount = new HDAccount(params, mAccountKey, version, dis);
+
+        // Only a version 2 snapshot can have a matching journal.
+        if (version >= 2)
+            mSnapshotNumAddrs = mAccount.numAddrs();
+
+        mLogger.info("deserialized HDReceiver");
+    }
+
+    public void write(DataOutputStream dos) throws IOException {
+        dos.writeInt(PERSIST_MAGIC);
+        dos.writeInt(PERSIST_VERSION);
+        dos.writeLong(mGeneration);
+        dos.writeUTF(mAccount.xpubstr());
+        byte[] privKeyBytes = mWorkaroundKey.getPrivKeyBytes();
+        dos.writeByte(privKeyBytes.length);
+        dos.write(privKeyBytes);
+        mAccount.write(dos);
+    }
+
     // This signature is used when the receiver is deserialized.
     public HDReceiver(Context ctxt,
                       NetworkParameters params,
@@ -239,72 +376,228 @@ public class HDReceiver {
         mAccount.gatherAllKeys(null, null, creationTime, keys);
     }
 
-    public void clearBalances() {
+    public synchronized void clearBalances() {
         // Clears the balance and tx counters.
         mAccount.clearBalance();
+
+        // Forget what the incremental accounting has applied.
+        mApplied.clear();
+        mAppliedValid = false;
+        mAmounts.clear();
+    }
+
+    // A single address's share of a transaction.
+    private static class Contribution {
+        public final HDAddress	mAddr;
+        public final long		mBalance;
+        public final long		mAvailable;
+        public Contribution(HDAddress addr, long balance, long available) {
+            mAddr = addr;
+            mBalance = balance;
+            mAvailable = available;
+        }
+    }
+
+    // What we applied for a transaction, and the state it was in
+    // when we applied it.
+    private static class AppliedTx {
+        public ConfidenceType		mConfType;
+        public boolean				mPending;
+        public int					mNumConnected;
+        public List<Contribution>	mContribs;
+        public int					mPass;
     }
 
-    public void applyAllTransactions(Iterable<WalletTransaction> iwt) {
-        // Clear the balance and tx counters.
+    private HashMap<Sha256Hash, AppliedTx>	mApplied =
+        new HashMap<Sha256Hash, AppliedTx>();
+    private boolean		mAppliedValid = false;
+    private int			mAppliedNumAddrs = 0;
+    private int			mAppliedPass = 0;
+
+    public synchronized void applyAllTransactions
+        (Iterable<WalletTransaction> iwt) {
+        // Clear the balance and tx counters, then replay everything.
         clearBalances();
+        applyTransactionDeltas(iwt);
+
+        // This is too noisy
+        // // Log balance summary.
+        // for (HDAccount acct : mAccounts)
+        //     acct.logBalance();
+    }
+
+    // Incremental version of applyAllTransactions.  Only new
+    // transactions, transactions which vanished from the wallet and
+    // transactions whose confidence type, pending state or connected
+    // inputs changed are (re)applied.  The resulting counters are the
+    // same as a full replay.
+    //
+    public synchronized void applyTransactionDeltas
+        (Iterable<WalletTransaction> iwt) {
+        long startTime = Metrics.startTimer();
+
+        // If keys were added since the last pass previously ignored
+        // transactions may now match; start over.
+        if (mAppliedValid && mAppliedNumAddrs != mAccount.numAddrs())
+            clearBalances();
+
+        if (!mAppliedValid) {
+            // We don't know what the counters hold (eg. restored from
+            // the persisted file); start from zero.
+            mAccount.clearBalance();
+            mAppliedValid = true;
+            mAppliedNumAddrs = mAccount.numAddrs();
+        }
+
+        int pass = ++mAppliedPass;
+        int nchanged = 0;
 
         for (WalletTransaction wtx : iwt) {
-            // WalletTransaction.Pool pool = wtx.getPool();
             Transaction tx = wtx.getTransaction();
-            boolean avail = !tx.isPending();
-            TransactionConfidence conf = tx.getConfidence();
-            ConfidenceType ct = conf.getConfidenceType();
-
-            // Skip dead transactions.
-            if (ct != ConfidenceType.DEAD) {
-
-                // Traverse the HDAccounts with all outputs.
-                List<TransactionOutput> lto = tx.getOutputs();
-                for (TransactionOutput to : lto) {
-                    long value = to.getValue().longValue();
-                    try {
-                        byte[] pubkey = null;
-                        byte[] pubkeyhash = null;
-                        Script script = to.getScriptPubKey();
-                        if (script.isSentToRawPubKey())
-                            pubkey = script.getPubKey();
-                        else
-                            pubkeyhash = script.getPubKeyHash();
-                        mAccount.applyOutput(pubkey, pubkeyhash, value, avail);
-                    } catch (ScriptException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
+            ConfidenceType ct = tx.getConfidence().getConfidenceType();
+            boolean pending = tx.isPending();
+            int numConnected = numConnectedInputs(tx);
 
-                // Traverse the HDAccounts with all inputs.
-                List<TransactionInput> lti = tx.getInputs();
-                for (TransactionInput ti : lti) {
-                    // Get the connected TransactionOutput to see value.
-                    TransactionOutput cto = ti.getConnectedOutput();
-                    if (cto == null) {
-                        // It appears we land here when processing transactions
-                        // where we handled the output above.
-                        //
-                        // mLogger.warn("couldn't find connected output for input");
-                        continue;
-                    }
-                    long value = cto.getValue().longValue();
-                    try {
-                        byte[] pubkey = ti.getScriptSig().getPubKey();
-                        mAccount.applyInput(pubkey, value);
-                    } catch (ScriptException e) {
-                        // TODO Auto-generated catch block
-                        e.printStackTrace();
-                    }
-                }
+            AppliedTx atx = mApplied.get(tx.getHash());
+            if (atx == null) {
+                atx = new AppliedTx();
+                mApplied.put(tx.getHash(), atx);
+            }
+            else if (atx.mConfType == ct &&
+                     atx.mPending == pending &&
+                     atx.mNumConnected == numConnected) {
+                // Nothing changed.
+                atx.mPass = pass;
+                continue;
+            }
+            else {
+                // Back out what we applied before.
+                unapply(atx.mContribs);
+            }
+
+            atx.mConfType = ct;
+            atx.mPending = pending;
+            atx.mNumConnected = numConnected;
+            atx.mContribs = contributions(tx, ct, !pending);
+            atx.mPass = pass;
+            apply(atx.mContribs);
+            ++nchanged;
+
+            // Remember the first block each address was used in.
+            if (ct == ConfidenceType.BUILDING) {
+                int height = tx.getConfidence().getAppearedAtChainHeight();
+                long time = tx.getUpdateTime().getTime() / 1000;
+                for (Contribution cc : atx.mContribs)
+                    cc.mAddr.noteSeen(height, time);
             }
         }
 
-        // This is too noisy
-        // // Log balance summary.
-        // for (HDAccount acct : mAccounts)
-        //     acct.logBalance();
+        // Back out any transactions no longer in the wallet.
+        Iterator<AppliedTx> it = mApplied.values().iterator();
+        while (it.hasNext()) {
+            AppliedTx atx = it.next();
+            if (atx.mPass != pass) {
+                unapply(atx.mContribs);
+                it.remove();
+                ++nchanged;
+            }
+        }
+
+        // Drop cached amounts of transactions no longer in the wallet.
+        mAmounts.keySet().retainAll(mApplied.keySet());
+
+        mLogger.debug(String.format("applied %d transaction changes",
+                                    nchanged));
+        sTxChanges.add(nchanged);
+        sApplyTime.recordSince(startTime);
+    }
+
+    private static int numConnectedInputs(Transaction tx) {
+        int count = 0;
+        for (TransactionInput ti : tx.getInputs())
+            if (ti.getConnectedOutput() != null)
+                ++count;
+        return count;
+    }
+
+    private List<Contribution> contributions(Transaction tx,
+                                             ConfidenceType ct,
+                                             boolean avail) {
+        List<Contribution> contribs = new ArrayList<Contribution>();
+
+        // Dead transactions don't contribute.
+        if (ct == ConfidenceType.DEAD)
+            return contribs;
+
+        // Consider all outputs.
+        List<TransactionOutput> lto = tx.getOutputs();
+        for (TransactionOutput to : lto) {
+            long value = to.getValue().longValue();
+            try {
+                byte[] pubkey = null;
+                byte[] pubkeyhash = null;
+                Script script = to.getScriptPubKey();
+                if (script.isSentToRawPubKey())
+                    pubkey = script.getPubKey();
+                else
+                    pubkeyhash = script.getPubKeyHash();
+                HDAddress hda = mAccount.lookup(pubkey, pubkeyhash);
+                if (hda != null)
+                    contribs.add(new Contribution(hda, value,
+                                                  avail ? value : 0));
+            } catch (ScriptException ex) {
+                mLogger.warn("skipping unparseable output of " +
+                             tx.getHashAsString() + ": " + ex.toString());
+            }
+        }
+
+        // Consider all inputs.
+        List<TransactionInput> lti = tx.getInputs();
+        for (TransactionInput ti : lti) {
+            // Get the connected TransactionOutput to see value.
+            TransactionOutput cto = ti.getConnectedOutput();
+            if (cto == null) {
+                // It appears we land here when processing transactions
+                // where we handled the output above.
+                continue;
+            }
+            long value = cto.getValue().longValue();
+            try {
+                byte[] pubkey = ti.getScriptSig().getPubKey();
+                HDAddress hda = mAccount.lookup(pubkey, null);
+                if (hda != null)
+                    contribs.add(new Contribution(hda, -value, -value));
+            } catch (ScriptException ex) {
+                mLogger.warn("skipping unparseable input of " +
+                             tx.getHashAsString() + ": " + ex.toString());
+            }
+        }
+
+        return contribs;
+    }
+
+    private static void apply(List<Contribution> contribs) {
+        for (Contribution cc : contribs)
+            cc.mAddr.applyDelta(1, cc.mBalance, cc.mAvailable);
+    }
+
+    private static void unapply(List<Contribution> contribs) {
+        for (Contribution cc : contribs)
+            cc.mAddr.applyDelta(-1, -cc.mBalance, -cc.mAvailable);
+    }
+
+    // Returns the time to rescan from after a margin extension.  The
+    // rescan clears the wallet's transactions, so it has to start
+    // before the first activity on any of our addresses or we would
+    // lose history; that is still much later than EPOCH for most
+    // wallets.  Falls back to EPOCH if some used address predates
+    // first-seen tracking.
+    //
+    public synchronized long marginRescanTime() {
+        long earliest = mAccount.earliestActivityTime();
+        if (earliest == Long.MAX_VALUE || earliest < HDAddress.EPOCH)
+            return HDAddress.EPOCH;
+        return earliest;
     }
 
     public long balanceForAccount() {
@@ -315,7 +608,42 @@ public class HDReceiver {
     	return mAccount.available();
     }
 
+    // Cached net amount of a transaction to the account.  Only valid
+    // while the transaction's confidence type and connected inputs
+    // and our number of addresses are unchanged.
+    private static class TxAmount {
+        public ConfidenceType	mConfType;
+        public int				mNumConnected;
+        public int				mNumAddrs;
+        public long				mAmount;
+    }
+
+    private HashMap<Sha256Hash, TxAmount>	mAmounts =
+        new HashMap<Sha256Hash, TxAmount>();
+
+    private static final Metrics.Counter sAmountHits =
+        Metrics.counter("hdreceiver.amount_hits");
+    private static final Metrics.Counter sAmountMisses =
+        Metrics.counter("hdreceiver.amount_misses");
+
     public long amountForAccount(WalletTransaction wtx) {
+        return txAmount(wtx.getTransaction()).mAmount;
+    }
+
+    private synchronized TxAmount txAmount(Transaction tx) {
+        ConfidenceType ct = tx.getConfidence().getConfidenceType();
+        int numConnected = numConnectedInputs(tx);
+        int numAddrs = mAccount.numAddrs();
+
+        TxAmount txa = mAmounts.get(tx.getHash());
+        if (txa != null &&
+            txa.mConfType == ct &&
+            txa.mNumConnected == numConnected &&
+            txa.mNumAddrs == numAddrs) {
+            sAmountHits.inc();
+            return txa;
+        }
+        sAmountMisses.inc();
 
         // This routine is only called from the View Transactions
         // activity, so it is OK if it uses all balance and not
@@ -324,12 +652,6 @@ public class HDReceiver {
         long credits = 0;
         long debits = 0;
 
-        // Which accounts are we considering?  (-1 means all)
-        ArrayList<HDAccount> accts = new ArrayList<HDAccount>();
-        accts.add(mAccount);
-        
-        Transaction tx = wtx.getTransaction();
-
         // Consider credits.
         List<TransactionOutput> lto = tx.getOutputs();
         for (TransactionOutput to : lto) {
@@ -342,13 +664,12 @@ public class HDReceiver {
                     pubkey = script.getPubKey();
                 else
                     pubkeyhash = script.getPubKeyHash();
-                for (HDAccount hda : accts) {
-                    if (hda.hasPubKey(pubkey, pubkeyhash))
-                        credits += value;
-                }
-            } catch (ScriptException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                HDAddress hda = mAccount.lookup(pubkey, pubkeyhash);
+                if (hda != null)
+                    credits += value;
+            } catch (ScriptException ex) {
+                mLogger.warn("skipping unparseable output of " +
+                             tx.getHashAsString() + ": " + ex.toString());
             }
         }
 
@@ -367,16 +688,24 @@ public class HDReceiver {
             long value = cto.getValue().longValue();
             try {
                 byte[] pubkey = ti.getScriptSig().getPubKey();
-                for (HDAccount hda : accts)
-                    if (hda.hasPubKey(pubkey, null))
-                        debits += value;
-            } catch (ScriptException e) {
-                // TODO Auto-generated catch block
-                e.printStackTrace();
+                HDAddress hda = mAccount.lookup(pubkey, null);
+                if (hda != null)
+                    debits += value;
+            } catch (ScriptException ex) {
+                mLogger.warn("skipping unparseable input of " +
+                             tx.getHashAsString() + ": " + ex.toString());
             }
         }
 
-        return credits - debits;
+        if (txa == null) {
+            txa = new TxAmount();
+            mAmounts.put(tx.getHash(), txa);
+        }
+        txa.mConfType = ct;
+        txa.mNumConnected = numConnected;
+        txa.mNumAddrs = numAddrs;
+        txa.mAmount = credits - debits;
+        return txa;
     }
 
     public Address nextReceiveAddress() {
@@ -384,15 +713,187 @@ public class HDReceiver {
         return acct.nextReceiveAddress();
     }
 
+    // Bursts of persistLater calls within this interval are coalesced
+    // into a single write.
+    private static final long	PERSIST_INTERVAL_MSECS = 2000;
+
+    private ScheduledExecutorService	mPersister = null;
+    private boolean						mPersistDirty = false;
+
+    private synchronized ScheduledExecutorService persister() {
+        if (mPersister == null) {
+            mPersister = Executors.newSingleThreadScheduledExecutor
+                (new ThreadFactory() {
+                        public Thread newThread(Runnable rr) {
+                            Thread thread =
+                                new Thread(rr, "HDReceiver persist");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return mPersister;
+    }
+
+    private final Runnable mPersistTask = new Runnable() {
+            public void run() {
+                synchronized (HDReceiver.this) {
+                    if (!mPersistDirty)
+                        return;
+                    mPersistDirty = false;
+                }
+                persist();
+            }
+        };
+
+    // Mark the state dirty; it will be written by the background
+    // persister within PERSIST_INTERVAL_MSECS.
+    public synchronized void persistLater() {
+        if (mPersistDirty)
+            return;	// A write is already scheduled.
+        mPersistDirty = true;
+        persister().schedule(mPersistTask, PERSIST_INTERVAL_MSECS,
+                             TimeUnit.MILLISECONDS);
+    }
+
+    // Write the state now and wait until it is on disk.  Writes are
+    // serialized with the background persister.
+    public void flush() {
+        synchronized (this) {
+            mPersistDirty = false;
+        }
+        try {
+            persister().submit(new Runnable() {
+                    public void run() {
+                        persist();
+                    }
+                }).get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            mLogger.warn("interrupted flushing HDReceiver");
+        } catch (ExecutionException ex) {
+            mLogger.warn("trouble flushing HDReceiver: " + ex.toString());
+        }
+    }
+
+    // Flush and stop the background persister; used when this
+    // receiver is being discarded.
+    public void close() {
+        flush();
+        synchronized (this) {
+            mPersister.shutdown();
+            mPersister = null;
+        }
+    }
+
+    // Writes the state synchronously on the calling thread.  Most
+    // callers should use persistLater or flush instead.
+    //
+    // When journaling, only the addresses whose counters changed are
+    // appended to the journal.  A full snapshot is written when
+    // addresses were added, when the journal gets too big, or after
+    // a failed write.
+    //
     public void persist() {
+        byte[] bytes;
+        boolean snapshot;
+        long generation;
+        long startTime = Metrics.startTimer();
+
+        // Serialize into a byte array.  Hold our lock so the wallet
+        // thread can't change things out from under us; the file IO
+        // happens outside the lock.
+        synchronized (this) {
+            snapshot = !mJournaling ||
+                mForceSnapshot ||
+                mSnapshotNumAddrs != mAccount.numAddrs() ||
+                mJournalSize >= JOURNAL_COMPACT_BYTES;
+            try {
+                if (snapshot) {
+                    ++mGeneration;
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    DataOutputStream dos = new DataOutputStream(baos);
+                    write(dos);
+                    dos.close();
+                    bytes = baos.toByteArray();
+                    clearDirty(mAccount.getReceiveChain(), null);
+                    clearDirty(mAccount.getChangeChain(), null);
+                }
+                else {
+                    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                    DataOutputStream dos = new DataOutputStream(baos);
+                    clearDirty(mAccount.getReceiveChain(), dos);
+                    clearDirty(mAccount.getChangeChain(), dos);
+                    dos.close();
+                    bytes = baos.toByteArray();
+                }
+            } catch (IOException ex) {
+                mLogger.warn("failed to serialize: " + ex.toString());
+                mForceSnapshot = true;
+                return;
+            }
+            generation = mGeneration;
+
+            // Presume failure until the write is done; a failed
+            // write leaves records out of the journal.
+            mForceSnapshot = true;
+        }
+
+        boolean ok = snapshot ?
+            writeSnapshot(bytes, generation) : appendJournal(bytes);
+
+        if (ok) {
+            (snapshot ? sSnapshots : sJournalAppends).inc();
+            sPersistBytes.record(bytes.length);
+            sPersistTime.recordSince(startTime);
+        }
+
+        synchronized (this) {
+            if (ok) {
+                mForceSnapshot = false;
+                if (snapshot) {
+                    mSnapshotNumAddrs = mAccount.numAddrs();
+                    mJournalSize = JOURNAL_HEADER_SIZE;
+                }
+                else {
+                    mJournalSize += bytes.length;
+                }
+            }
+        }
+    }
+
+    // Clears the dirty flags on a chain's addresses, writing journal
+    // records for them if dos is not null.
+    private static void clearDirty(HDChain chain, DataOutputStream dos)
+        throws IOException {
+        for (HDAddress hda : chain.getAddresses()) {
+            if (!hda.isDirty())
+                continue;
+            if (dos != null) {
+                ByteArrayOutputStream baos = new ByteArrayOutputStream();
+                DataOutputStream rec = new DataOutputStream(baos);
+                rec.writeByte(chain.isReceive() ? 0 : 1);
+                rec.writeInt(hda.getAddrNum());
+                rec.writeInt(hda.numTrans());
+                rec.writeLong(hda.getBalance());
+                rec.writeLong(hda.getAvailable());
+                rec.writeInt(hda.getFirstSeenHeight());
+                rec.writeLong(hda.getFirstSeenTime());
+                rec.close();
+                byte[] recBytes = baos.toByteArray();
+                CRC32 crc = new CRC32();
+                crc.update(recBytes);
+                dos.write(recBytes);
+                dos.writeInt((int) crc.getValue());
+            }
+            hda.clearDirty();
+        }
+    }
+
+    private boolean writeSnapshot(byte[] plainBytes, long generation) {
         String path = persistPath(mFilePrefix);
         String tmpPath = path + ".tmp";
         try {
-            // Serialize into a byte array.
-            JSONObject jsonobj = dumps();
-            String jsonstr = jsonobj.toString(4);	// indentation
-            byte[] plainBytes = jsonstr.getBytes(Charset.forName("UTF-8"));
-
             // Ready a tmp file.
             File tmpFile = new File(mDirectory, tmpPath);
             if (tmpFile.exists())
@@ -404,13 +905,26 @@ public class HDReceiver {
 
             // Swap the tmp file into place.
             File newFile = new File(mDirectory, path);
-            if (!tmpFile.renameTo(newFile))
+            if (!tmpFile.renameTo(newFile)) {
                 mLogger.warn("failed to rename to " + newFile);
-            else
-                mLogger.info("persisted to " + path);
+                return false;
+            }
+            mLogger.info("persisted to " + path);
+
+            // Start a new journal for this generation.  If we crash
+            // before this the old journal's generation won't match
+            // and it will be ignored.
+            ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            DataOutputStream dos = new DataOutputStream(baos);
+            dos.writeInt(JOURNAL_MAGIC);
+            dos.writeLong(generation);
+            dos.close();
+            ostrm = new FileOutputStream
+                (new File(mDirectory, journalPath(mFilePrefix)));
+            ostrm.write(baos.toByteArray());
+            ostrm.close();
+            return true;
 
-        } catch (JSONException ex) {
-            mLogger.warn("failed generating JSON: " + ex.toString());
         } catch (IOException ex) {
             mLogger.warn("failed to write to " + tmpPath + ": " +
                          ex.toString());
@@ -419,12 +933,135 @@ public class HDReceiver {
 		} catch (IllegalStateException ex) {
             mLogger.warn("encryption failed: " + ex.toString());
 		}
+        return false;
+    }
+
+    private boolean appendJournal(byte[] records) {
+        if (records.length == 0)
+            return true;
+
+        String path = journalPath(mFilePrefix);
+        try {
+            FileOutputStream ostrm =
+                new FileOutputStream(new File(mDirectory, path), true);
+            ostrm.write(records);
+            ostrm.close();
+            mLogger.info(String.format("journaled %d addresses to %s",
+                                       records.length / JOURNAL_RECORD_SIZE,
+                                       path));
+            return true;
+        } catch (IOException ex) {
+            mLogger.warn("failed to append to " + path + ": " +
+                         ex.toString());
+            return false;
+        }
+    }
+
+    // Apply the journal records on top of the restored snapshot.  A
+    // missing, unreadable or stale journal is ignored, and the next
+    // persist writes a snapshot so appends always follow a header.
+    // A partial or corrupt record ends the replay and the journal is
+    // truncated there.
+    private void replayJournal() {
+        if (mSnapshotNumAddrs < 0)
+            return;
+
+        String path = journalPath(mFilePrefix);
+        File file = new File(mDirectory, path);
+        if (!file.exists()) {
+            mForceSnapshot = true;
+            return;
+        }
+
+        long startTime = Metrics.startTimer();
+
+        byte[] bytes;
+        try {
+            bytes = readFile(file);
+        } catch (IOException ex) {
+            mLogger.warn("trouble reading " + path + ": " + ex.toString());
+            mForceSnapshot = true;
+            return;
+        }
+
+        try {
+            DataInputStream dis =
+                new DataInputStream(new ByteArrayInputStream(bytes));
+            int magic = bytes.length < JOURNAL_HEADER_SIZE ? 0 : dis.readInt();
+            if ((magic != JOURNAL_MAGIC && magic != JOURNAL_V1_MAGIC) ||
+                dis.readLong() != mGeneration) {
+                mLogger.info("ignoring stale journal " + path);
+                mForceSnapshot = true;
+                return;
+            }
+
+            boolean isV1 = magic == JOURNAL_V1_MAGIC;
+            int recSize = isV1 ? JOURNAL_V1_RECORD_SIZE : JOURNAL_RECORD_SIZE;
+
+            int nrecs = 0;
+            int offset = JOURNAL_HEADER_SIZE;
+            while (offset + recSize <= bytes.length) {
+                CRC32 crc = new CRC32();
+                crc.update(bytes, offset, recSize - 4);
+                int chainnum = dis.readUnsignedByte();
+                int addrNum = dis.readInt();
+                int numTrans = dis.readInt();
+                long balance = dis.readLong();
+                long available = dis.readLong();
+                int firstSeenHeight = isV1 ? -1 : dis.readInt();
+                long firstSeenTime = isV1 ? -1 : dis.readLong();
+                int sum = dis.readInt();
+                if (sum != (int) crc.getValue()) {
+                    mLogger.warn("bad journal record at " + offset);
+                    break;
+                }
+
+                HDChain chain = chainnum == 0 ?
+                    mAccount.getReceiveChain() : mAccount.getChangeChain();
+                if (addrNum < 0 || addrNum >= chain.numAddrs()) {
+                    mLogger.warn("journal address out of range at " + offset);
+                    break;
+                }
+                HDAddress hda = chain.getAddresses().get(addrNum);
+                hda.setCounters(numTrans, balance, available);
+                if (!isV1)
+                    hda.setFirstSeen(firstSeenHeight, firstSeenTime);
+
+                offset += recSize;
+                ++nrecs;
+            }
+            mLogger.info(String.format("replayed %d journal records", nrecs));
+
+            // Don't append new format records to an old journal.
+            if (isV1)
+                mForceSnapshot = true;
+
+            // Drop any trailing partial record so appends line up.
+            if (offset != bytes.length) {
+                mLogger.warn(String.format("truncating journal from %d to %d",
+                                           bytes.length, offset));
+                RandomAccessFile raf = new RandomAccessFile(file, "rw");
+                raf.setLength(offset);
+                raf.close();
+            }
+            mJournalSize = offset;
+            sReplayTime.recordSince(startTime);
+
+        } catch (IOException ex) {
+            mLogger.warn("trouble replaying " + path + ": " + ex.toString());
+            mForceSnapshot = true;
+        }
     }
 
     // Ensure that there are enough spare addresses on all chains.
     // Returns the most number of addresses added to a chain.
-    public int ensureMargins(Wallet wallet) {
-    	return mAccount.ensureMargins(wallet, null, null);
+    public synchronized int ensureMargins(Wallet wallet) {
+        long startTime = Metrics.startTimer();
+        int numAddrs = mAccount.numAddrs();
+    	int maxExtended = mAccount.ensureMargins(wallet, null, null);
+        sKeysAdded.add(mAccount.numAddrs() - numAddrs);
+        sMarginTime.recordSince(startTime);
+        return maxExtended;
     }
 
     public Balance getBalance() {
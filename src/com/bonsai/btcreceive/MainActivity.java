@@ -255,6 +255,10 @@ public class MainActivity extends BaseWalletActivity {
 
 	@Override
     protected void onRateChanged() {
+        ReceiveFragment rf =
+            (ReceiveFragment) mAdapter.getActiveFragment(mPager, 0);
+        if (rf != null)
+            rf.updateRateAge();
     }
 
     private String formatTimeLeft(long msec) {
@@ -0,0 +1,248 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.btcreceive;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Process wide counters, gauges and histograms for the sync and
+// wallet pipeline.
+//
+// Instruments are looked up by name once, typically into a static
+// field, and are cheap to update after that.  When metrics are
+// disabled every update returns immediately.
+//
+public class Metrics {
+
+    private static Logger mLogger = LoggerFactory.getLogger(Metrics.class);
+
+    private static volatile boolean sEnabled = true;
+
+    private static final Map<String, Counter> sCounters =
+        new TreeMap<String, Counter>();
+    private static final Map<String, Gauge> sGauges =
+        new TreeMap<String, Gauge>();
+    private static final Map<String, Histogram> sHistograms =
+        new TreeMap<String, Histogram>();
+
+    public static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    public static boolean isEnabled() {
+        return sEnabled;
+    }
+
+    // A monotonically increasing count.  The rate is figured from
+    // the first increment.
+    public static class Counter {
+        private final AtomicLong	mValue = new AtomicLong();
+        private volatile long		mFirstTime = 0;
+
+        public void inc() {
+            add(1);
+        }
+
+        public void add(long delta) {
+            if (!sEnabled)
+                return;
+            if (mFirstTime == 0)
+                mFirstTime = System.currentTimeMillis();
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        // Returns the average increments per second since the first.
+        public double getRate() {
+            long elapsed = System.currentTimeMillis() - mFirstTime;
+            if (mFirstTime == 0 || elapsed <= 0)
+                return 0.0;
+            return mValue.get() * 1000.0 / elapsed;
+        }
+    }
+
+    // The most recent value of something.
+    public static class Gauge {
+        private volatile double		mValue = 0.0;
+
+        public void set(double value) {
+            if (sEnabled)
+                mValue = value;
+        }
+
+        public double get() {
+            return mValue;
+        }
+    }
+
+    // Distribution of values in power of two buckets; bucket N holds
+    // values in [2^(N-1), 2^N).  Percentiles are reported as the
+    // upper bound of the bucket they fall in.
+    public static class Histogram {
+        private final long[]	mBuckets = new long[64];
+        private long			mCount = 0;
+        private long			mSum = 0;
+        private long			mMax = 0;
+
+        public void record(long value) {
+            if (!sEnabled)
+                return;
+            if (value < 0)
+                value = 0;
+            int bucket = 64 - Long.numberOfLeadingZeros(value);
+            synchronized (this) {
+                ++mBuckets[Math.min(bucket, 63)];
+                ++mCount;
+                mSum += value;
+                if (value > mMax)
+                    mMax = value;
+            }
+        }
+
+        // Records the microseconds elapsed since a startTimer() value.
+        public void recordSince(long start) {
+            record((System.nanoTime() - start) / 1000);
+        }
+
+        public synchronized long getCount() {
+            return mCount;
+        }
+
+        public synchronized long getSum() {
+            return mSum;
+        }
+
+        public synchronized long getMax() {
+            return mMax;
+        }
+
+        public synchronized long getMean() {
+            return mCount == 0 ? 0 : mSum / mCount;
+        }
+
+        public synchronized long getPercentile(double pct) {
+            if (mCount == 0)
+                return 0;
+            long target = (long) Math.ceil(mCount * pct / 100.0);
+            long seen = 0;
+            for (int ii = 0; ii < mBuckets.length; ++ii) {
+                seen += mBuckets[ii];
+                if (seen >= target)
+                    return Math.min(ii == 0 ? 0 : (1L << ii) - 1, mMax);
+            }
+            return mMax;
+        }
+    }
+
+    public static Counter counter(String name) {
+        synchronized (sCounters) {
+            Counter counter = sCounters.get(name);
+            if (counter == null) {
+                counter = new Counter();
+                sCounters.put(name, counter);
+            }
+            return counter;
+        }
+    }
+
+    public static Gauge gauge(String name) {
+        synchronized (sGauges) {
+            Gauge gauge = sGauges.get(name);
+            if (gauge == null) {
+                gauge = new Gauge();
+                sGauges.put(name, gauge);
+            }
+            return gauge;
+        }
+    }
+
+    public static Histogram histogram(String name) {
+        synchronized (sHistograms) {
+            Histogram hist = sHistograms.get(name);
+            if (hist == null) {
+                hist = new Histogram();
+                sHistograms.put(name, hist);
+            }
+            return hist;
+        }
+    }
+
+    // Returns a timestamp for Histogram.recordSince.
+    public static long startTimer() {
+        return System.nanoTime();
+    }
+
+    // Returns a human readable listing of all the instruments.
+    public static String dump() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("# metrics at ").append(new Date()).append('\n');
+        synchronized (sCounters) {
+            for (Map.Entry<String, Counter> ent : sCounters.entrySet()) {
+                Counter counter = ent.getValue();
+                sb.append(String.format("counter %s %d (%.2f/s)\n",
+                                        ent.getKey(),
+                                        counter.get(),
+                                        counter.getRate()));
+            }
+        }
+        synchronized (sGauges) {
+            for (Map.Entry<String, Gauge> ent : sGauges.entrySet())
+                sb.append(String.format("gauge %s %.2f\n",
+                                        ent.getKey(),
+                                        ent.getValue().get()));
+        }
+        synchronized (sHistograms) {
+            for (Map.Entry<String, Histogram> ent : sHistograms.entrySet()) {
+                Histogram hist = ent.getValue();
+                sb.append(String.format("histogram %s count %d mean %d " +
+                                        "p50 %d p90 %d p99 %d max %d\n",
+                                        ent.getKey(),
+                                        hist.getCount(),
+                                        hist.getMean(),
+                                        hist.getPercentile(50),
+                                        hist.getPercentile(90),
+                                        hist.getPercentile(99),
+                                        hist.getMax()));
+            }
+        }
+        return sb.toString();
+    }
+
+    // Writes the dump to a file, replacing it.
+    public static boolean dumpToFile(File file) {
+        try {
+            FileWriter writer = new FileWriter(file);
+            writer.write(dump());
+            writer.close();
+            return true;
+        } catch (IOException ex) {
+            mLogger.warn("failed to write metrics to " + file + ": " +
+                         ex.toString());
+            return false;
+        }
+    }
+}
@@ -25,10 +25,10 @@ import org.slf4j.LoggerFactory;
 import com.google.bitcoin.core.AbstractPeerEventListener;
 import com.google.bitcoin.core.Block;
 import com.google.bitcoin.core.Peer;
+import com.google.bitcoin.core.Transaction;
 
 import java.text.DateFormat;
 import java.util.Date;
-import java.util.LinkedList;
 import java.util.concurrent.Semaphore;
 
 /**
@@ -38,29 +38,36 @@ import java.util.concurrent.Semaphore;
  */
 public class MyDownloadListener extends AbstractPeerEventListener {
 
-    private class ProgressRecord {
-        public long		mTimestamp;
-        public int		mBlocksLeft;
-        public ProgressRecord(long timestamp, int blocksLeft) {
-            this.mTimestamp = timestamp;
-            this.mBlocksLeft = blocksLeft;
-        }
-    }
-
     private static final Logger log = LoggerFactory.getLogger(MyDownloadListener.class);
     private int originalBlocksLeft = -1;
     private int lastPercent = 0;
     private long lastUpdateTime = 0;
     private Semaphore done = new Semaphore(0);
     private boolean caughtUp = false;
-    private LinkedList<ProgressRecord> progress = new LinkedList<ProgressRecord>();
 
-    private static final long PROGRESS_GRANULARITY = 10 * 1000;
+    // Download rate is sampled every SAMPLE_INTERVAL msecs and folded
+    // into an exponentially weighted average with time constant
+    // RATE_TIME_CONSTANT, so the ETA follows real changes in filtered
+    // block density without jumping on every burst.
+    private static final long SAMPLE_INTERVAL = 2 * 1000;
+    private static final double RATE_TIME_CONSTANT = 30 * 1000;
+
+    private long sampleTime = 0;
+    private int sampleBlocksLeft = -1;
+    private double blocksPerMsec = 0.0;
+
+    private static final Metrics.Counter sBlocks =
+        Metrics.counter("sync.blocks");
+    private static final Metrics.Counter sTransactions =
+        Metrics.counter("sync.transactions");
+    private static final Metrics.Gauge sBlocksPerSec =
+        Metrics.gauge("sync.blocks_per_sec");
 
     @Override
     public void onChainDownloadStarted(Peer peer, int blocksLeft) {
         startDownload(blocksLeft);
         originalBlocksLeft = blocksLeft;
+        sampleBlocksLeft = -1;
         if (blocksLeft == 0) {
             doneDownload();
             done.release();
@@ -72,6 +79,8 @@ public class MyDownloadListener extends AbstractPeerEventListener {
         if (caughtUp)
             return;
 
+        sBlocks.inc();
+
         if (blocksLeft == 0) {
             caughtUp = true;
             doneDownload();
@@ -94,39 +103,49 @@ public class MyDownloadListener extends AbstractPeerEventListener {
         }
     }
 
+    @Override
+    public void onTransaction(Peer peer, Transaction tx) {
+        // Includes the transactions matched by the bloom filter in
+        // downloaded blocks.
+        sTransactions.inc();
+    }
+
     private long estimateComplete(long now, int blocksLeft) {
-        // Only record progress every PROGRESS_GRANULARITY msecs.
-        if (progress.size() == 0) {
-            progress.add(new ProgressRecord(now, blocksLeft));
-        } else {
-            ProgressRecord newrec = progress.getLast();
-            if (now - newrec.mTimestamp >= PROGRESS_GRANULARITY)
-                progress.add(new ProgressRecord(now, blocksLeft));
+        if (sampleBlocksLeft < 0) {
+            sampleTime = now;
+            sampleBlocksLeft = blocksLeft;
+            return 0;
         }
 
-        // Prune records that are too old.
-        while (progress.size() > 1) {
-            ProgressRecord oldrec = progress.getFirst();
-            long deltaBlocks = oldrec.mBlocksLeft - blocksLeft;
-            if (deltaBlocks < blocksLeft)
-                break;
-            progress.removeFirst();
+        long deltaTime = now - sampleTime;
+        if (deltaTime >= SAMPLE_INTERVAL) {
+            int deltaBlocks = sampleBlocksLeft - blocksLeft;
+            double rate = (double) Math.max(deltaBlocks, 0) / (double) deltaTime;
+            if (blocksPerMsec == 0.0) {
+                blocksPerMsec = rate;
+            } else {
+                // Weight by the sample length so irregular samples
+                // age the average consistently.
+                double alpha = 1.0 - Math.exp(-deltaTime / RATE_TIME_CONSTANT);
+                blocksPerMsec += alpha * (rate - blocksPerMsec);
+            }
+            sampleTime = now;
+            sampleBlocksLeft = blocksLeft;
+            sBlocksPerSec.set(getBlocksPerSecond());
         }
 
-        // Look at the oldest record in the queue.
-        ProgressRecord prec = progress.getFirst();
-
-        long deltaTime = now - prec.mTimestamp;
-        int deltaBlocks = prec.mBlocksLeft - blocksLeft;
-
-        // Make sure we have some delta.
-        if (deltaTime == 0 || deltaBlocks == 0)
+        if (blocksPerMsec == 0.0)
             return 0;
 
-        double blocksPerMillisecond = (double) deltaBlocks / (double) deltaTime;
-        double mSecLeft = (double) blocksLeft / blocksPerMillisecond;
+        return (long) (blocksLeft / blocksPerMsec);
+    }
 
-        return (long) mSecLeft;
+    /**
+     * Returns the smoothed download rate in blocks per second, or zero
+     * if there isn't enough history yet.
+     */
+    public double getBlocksPerSecond() {
+        return blocksPerMsec * 1000.0;
     }
 
     /**
@@ -186,6 +186,7 @@ public class MyWalletAppKit extends AbstractIdleService {
 	@Override
     protected void startUp() throws Exception {
         // Runs in a separate thread.
+        long startTime = Metrics.startTimer();
         if (!directory.exists()) {
             if (!directory.mkdir()) {
                 throw new IOException("Could not create named directory.");
@@ -234,6 +235,7 @@ public class MyWalletAppKit extends AbstractIdleService {
             vChain.addWallet(vWallet);
             vPeerGroup.addWallet(vWallet);
             onSetupCompleted();
+            Metrics.histogram("kit.startup_usecs").recordSince(startTime);
 
             if (blockingStartup) {
                 vPeerGroup.startAndWait();
@@ -300,6 +302,48 @@ public class MyWalletAppKit extends AbstractIdleService {
         mLogger.info("MyWalletAppKit shutDown finished");
     }
 
+    // Block timestamps are only loosely ordered; rewind this much
+    // further than asked so nothing near the boundary is missed.
+    private static final long REWIND_SLACK_SECS = 24 * 60 * 60;
+
+    /**
+     * Rewinds the chain head of an existing SPV block store file so the chain will be re-downloaded from before
+     * rescanTime, keeping the already validated headers in the file. The kit must not be running. Returns false if
+     * the store doesn't reach back that far (it only holds the most recent headers), in which case the caller should
+     * delete the file and start again from a checkpoint.
+     */
+    public static boolean rewindChainFile(NetworkParameters params, File chainFile, long rescanTime) {
+        if (rescanTime == 0 || !chainFile.exists())
+            return false;
+
+        long targetTime = rescanTime - REWIND_SLACK_SECS;
+        SPVBlockStore store = null;
+        try {
+            store = new SPVBlockStore(params, chainFile);
+            StoredBlock cursor = store.getChainHead();
+            while (cursor.getHeader().getTimeSeconds() >= targetTime) {
+                cursor = cursor.getPrev(store);
+                if (cursor == null) {
+                    mLogger.info("chain store doesn't reach back to " + targetTime);
+                    return false;
+                }
+            }
+            mLogger.info(String.format("rewinding chain head to height %d", cursor.getHeight()));
+            store.setChainHead(cursor);
+            return true;
+        } catch (BlockStoreException ex) {
+            mLogger.warn("trouble rewinding chain store: " + ex.toString());
+            return false;
+        } finally {
+            try {
+                if (store != null)
+                    store.close();
+            } catch (BlockStoreException ex) {
+                mLogger.warn("trouble closing chain store: " + ex.toString());
+            }
+        }
+    }
+
     public NetworkParameters params() {
         return params;
     }
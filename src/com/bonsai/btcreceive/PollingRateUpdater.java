@@ -0,0 +1,265 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.btcreceive;
+
+import java.io.IOException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.preference.PreferenceManager;
+import android.support.v4.content.LocalBroadcastManager;
+
+// Base for RateUpdaters which poll a source on their own thread.
+//
+// Polls quickly while a screen that shows fiat amounts for entry is
+// visible (see setForeground) and slowly otherwise.  Failed fetches
+// back off exponentially and keep the last good rate; nothing is
+// fetched while there is no network.
+//
+// The last rate is cached in the preferences per source so a new
+// updater serves it right away while the first fetch is underway;
+// getRateAge says how old it is.
+//
+// getRate always returns the latest rate, but "rate-changed" is
+// only broadcast when the rate has moved by the configured fraction
+// since the last broadcast and the configured interval has passed,
+// so the screens redraw at a bounded rate however often we poll.
+//
+public abstract class PollingRateUpdater extends Thread implements RateUpdater {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(PollingRateUpdater.class);
+
+    private static final long FAST_INTERVAL_MSECS = 5 * 1000;
+    private static final long SLOW_INTERVAL_MSECS = 5 * 60 * 1000;
+    private static final long MAX_BACKOFF_MSECS = 15 * 60 * 1000;
+
+    // Shared by all updaters so a foreground change wakes them.
+    private static final Object sLock = new Object();
+    private static boolean sForeground = false;
+
+    protected final String mCode;
+
+    private volatile double mRate = 0.0;
+    private volatile long mRateTime = 0;	// When mRate was last confirmed.
+    private double mPublishedRate = 0.0;	// Last broadcast rate.
+    private long mPublishedTime = 0;
+    private volatile boolean mRunning = false;
+    private int mFailures = 0;
+
+    private LocalBroadcastManager mLBM;
+    private ConnectivityManager mConnMgr;
+    private SharedPreferences mPrefs;
+    private RateHistory mHistory;
+
+    // The declared defaults; setDefaultValues doesn't seed prefs
+    // added after the first run.
+    private String mMinChangeDefault;
+    private String mMinIntervalDefault;
+
+    protected PollingRateUpdater(Context context, String name, String code) {
+        super(name);
+        mCode = code;
+        mLBM = LocalBroadcastManager.getInstance(context);
+        mConnMgr = (ConnectivityManager)
+            context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        mPrefs = PreferenceManager.getDefaultSharedPreferences(context);
+        mHistory = RateHistory.getInstance(context, code);
+        mMinChangeDefault =
+            context.getString(R.string.pref_rate_min_change_default);
+        mMinIntervalDefault =
+            context.getString(R.string.pref_rate_min_interval_default);
+        setDaemon(true);
+
+        try {
+            mRate = Double.parseDouble
+                (mPrefs.getString(cacheKey() + "_rate", "0"));
+            mRateTime = mPrefs.getLong(cacheKey() + "_time", 0);
+        } catch (NumberFormatException ex) {
+            mRate = 0.0;
+        }
+        mPublishedRate = mRate;
+    }
+
+    // Called as screens which need a fresh rate come and go.  Going
+    // to the foreground polls right away if the rate is stale.
+    public static void setForeground(boolean foreground) {
+        synchronized (sLock) {
+            sForeground = foreground;
+            sLock.notifyAll();
+        }
+    }
+
+    // Returns the latest rate, or null if it hasn't changed since
+    // the last fetch.
+    protected abstract Double fetchLatestRate() throws IOException;
+
+    public void startUpdater() {
+        mRunning = true;
+        this.start();
+    }
+
+    public void stopUpdater() {
+        mRunning = false;
+        // Wakes the thread if it's pausing; a fetch in progress is
+        // bounded by the HTTP client timeouts.
+        this.interrupt();
+    }
+
+    @Override
+    public void run() {
+        mLogger.info(getName() + " run loop starting");
+        while (mRunning) {
+            long attempt = System.currentTimeMillis();
+
+            if (isNetworkAvailable())
+                poll();
+            maybePublish();
+
+            try {
+                pause(attempt);
+            } catch (InterruptedException ex) {
+                // Only stopUpdater interrupts us.
+                break;
+            }
+        }
+        mLogger.info(getName() + " run loop finished");
+    }
+
+    private void poll() {
+        Double rate;
+        try {
+            rate = fetchLatestRate();
+        } catch (IOException ex) {
+            ++mFailures;
+            mLogger.warn(String.format("%s fetch failed (%d in a row): %s",
+                                       getName(), mFailures, ex.toString()));
+            return;
+        } catch (RuntimeException ex) {
+            ++mFailures;
+            mLogger.warn(getName() + " fetch failed", ex);
+            return;
+        }
+        mFailures = 0;
+
+        // Did the rate change?  Keep the last good rate otherwise.
+        if (rate != null && rate > 0.0 && rate != mRate) {
+            mLogger.info(String.format("%s rate changed to %f",
+                                       getName(), rate));
+            mRate = rate;
+            mRateTime = System.currentTimeMillis();
+            mPrefs.edit()
+                .putString(cacheKey() + "_rate", Double.toString(rate))
+                .putLong(cacheKey() + "_time", mRateTime)
+                .apply();
+            mHistory.record(mRateTime, rate);
+        }
+        else if (mRate > 0.0) {
+            // Still current.
+            mRateTime = System.currentTimeMillis();
+        }
+    }
+
+    // Broadcasts the rate if it has moved enough, and long enough
+    // ago, since the last broadcast.  A change held back here goes
+    // out on a later poll.
+    private void maybePublish() {
+        double rate = mRate;
+        if (rate <= 0.0 || rate == mPublishedRate)
+            return;
+
+        long now = System.currentTimeMillis();
+        if (mPublishedRate > 0.0) {
+            double pctChange =
+                100.0 * Math.abs(rate - mPublishedRate) / mPublishedRate;
+            if (pctChange < prefDouble(SettingsActivity.KEY_RATE_MIN_CHANGE,
+                                       mMinChangeDefault))
+                return;
+            double minSecs =
+                prefDouble(SettingsActivity.KEY_RATE_MIN_INTERVAL,
+                           mMinIntervalDefault);
+            if (now - mPublishedTime < minSecs * 1000)
+                return;
+        }
+
+        mPublishedRate = rate;
+        mPublishedTime = now;
+        Intent intent = new Intent("rate-changed");
+        mLBM.sendBroadcast(intent);
+    }
+
+    private double prefDouble(String key, String def) {
+        try {
+            return Double.parseDouble(mPrefs.getString(key, def));
+        } catch (NumberFormatException ex) {
+            return Double.parseDouble(def);
+        }
+    }
+
+    // Per source as well as currency, so switching sources doesn't
+    // serve one source's rate as another's.
+    private String cacheKey() {
+        return "cached_fiat_" + getName() + "_" + mCode;
+    }
+
+    // Waits until the next poll is due.  The delay is refigured each
+    // time we're woken since the foreground state may have changed.
+    private void pause(long attempt) throws InterruptedException {
+        synchronized (sLock) {
+            while (mRunning) {
+                long remaining =
+                    attempt + nextDelay() - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return;
+                sLock.wait(remaining);
+            }
+        }
+    }
+
+    private long nextDelay() {
+        long base = sForeground ? FAST_INTERVAL_MSECS : SLOW_INTERVAL_MSECS;
+        if (mFailures == 0)
+            return base;
+        return Math.min(base << Math.min(mFailures, 10), MAX_BACKOFF_MSECS);
+    }
+
+    private boolean isNetworkAvailable() {
+        if (mConnMgr == null)
+            return true;
+        NetworkInfo info = mConnMgr.getActiveNetworkInfo();
+        return info != null && info.isConnected();
+    }
+
+    public double getRate() {
+        return mRate;
+    }
+
+    public String getCode() {
+        return mCode;
+    }
+
+    public long getRateAge() {
+        if (mRateTime == 0)
+            return -1;
+        return System.currentTimeMillis() - mRateTime;
+    }
+}
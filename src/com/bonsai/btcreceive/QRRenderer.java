@@ -0,0 +1,127 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.bonsai.btcreceive;
+
+import java.util.Hashtable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.Color;
+
+import com.google.zxing.BarcodeFormat;
+import com.google.zxing.EncodeHintType;
+import com.google.zxing.WriterException;
+import com.google.zxing.common.BitMatrix;
+import com.google.zxing.qrcode.QRCodeWriter;
+import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
+
+// Renders QR code bitmaps for payment URIs.
+//
+// The code is encoded at one pixel per module and then scaled up by
+// a whole number without filtering, so the pixel walk only covers
+// the modules.  The module sized pixel buffer and bitmap are reused
+// between renders.  Recently rendered codes are kept in a small LRU
+// cache keyed by content and size; callers must not modify the
+// returned bitmaps.
+//
+public class QRRenderer {
+
+    private static Logger mLogger = LoggerFactory.getLogger(QRRenderer.class);
+
+    private static final int CACHE_SIZE = 8;
+
+    private final static QRCodeWriter sQRCodeWriter = new QRCodeWriter();
+
+    private static final Hashtable<EncodeHintType, Object> sHints =
+        new Hashtable<EncodeHintType, Object>();
+    static {
+        sHints.put(EncodeHintType.MARGIN, 0);
+        sHints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H);
+    }
+
+    private static int[] sPixels = new int[0];
+    private static Bitmap sModuleBitmap = null;
+
+    private static final LinkedHashMap<String, Bitmap> sCache =
+        new LinkedHashMap<String, Bitmap>(CACHE_SIZE, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Bitmap> ee) {
+                return size() > CACHE_SIZE;
+            }
+        };
+
+    // Returns a bitmap of the QR code for content no larger than size
+    // pixels square, or null if it can't be encoded.
+    public static synchronized Bitmap render(String content, int size) {
+        String key = size + ":" + content;
+        Bitmap bitmap = sCache.get(key);
+        if (bitmap != null)
+            return bitmap;
+
+        BitMatrix result;
+		try {
+            // Zero dimensions give one pixel per module.
+			result = sQRCodeWriter.encode(content,
+                                          BarcodeFormat.QR_CODE,
+                                          0,
+                                          0,
+                                          sHints);
+		} catch (WriterException ex) {
+            mLogger.warn("qr encoder failed: " + ex.toString());
+            return null;
+		}
+
+        final int width = result.getWidth();
+        final int height = result.getHeight();
+        if (sPixels.length < width * height)
+            sPixels = new int[width * height];
+
+        for (int y = 0; y < height; y++)
+        {
+            final int offset = y * width;
+            for (int x = 0; x < width; x++)
+            {
+                sPixels[offset + x] =
+                    result.get(x, y) ? Color.BLACK : Color.TRANSPARENT;
+            }
+        }
+
+        if (sModuleBitmap == null ||
+            sModuleBitmap.getWidth() != width ||
+            sModuleBitmap.getHeight() != height)
+            sModuleBitmap =
+                Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+        sModuleBitmap.setPixels(sPixels, 0, width, 0, 0, width, height);
+
+        // Scale by a whole number so every module is the same size.
+        int scale = Math.max(1, size / Math.max(width, height));
+        if (scale == 1)
+            // createScaledBitmap would hand back our reused bitmap.
+            bitmap = sModuleBitmap.copy(Bitmap.Config.ARGB_8888, false);
+        else
+            bitmap = Bitmap.createScaledBitmap(sModuleBitmap,
+                                               width * scale,
+                                               height * scale,
+                                               false);
+
+        sCache.put(key, bitmap);
+        return bitmap;
+    }
+}
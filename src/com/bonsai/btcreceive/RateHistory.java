@@ -0,0 +1,156 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.bonsai.btcreceive;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.content.Context;
+
+// On-disk time series of fiat rates for one currency.
+//
+// Each record is a fixed width (time msecs, rate) pair and records
+// are appended in time order, so a lookup is a binary search over
+// the memory mapped file.  At most one record is kept per
+// RECORD_INTERVAL_MSECS; a change within the interval updates the
+// last record's rate in place.
+//
+public class RateHistory {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(RateHistory.class);
+
+    private static final int RECORD_SIZE = 16;
+    private static final long RECORD_INTERVAL_MSECS = 60 * 1000;
+
+    private static final HashMap<String, RateHistory> sInstances =
+        new HashMap<String, RateHistory>();
+
+    private final File			mFile;
+    private RandomAccessFile	mRaf = null;
+    private MappedByteBuffer	mMap = null;
+    private int					mNumRecords = 0;
+
+    public static RateHistory getInstance(Context ctxt, String code) {
+        synchronized (sInstances) {
+            RateHistory hist = sInstances.get(code);
+            if (hist == null) {
+                File file = new File(ctxt.getApplicationContext().getFilesDir(),
+                                     "btcreceive." + code + ".rates");
+                hist = new RateHistory(file);
+                sInstances.put(code, hist);
+            }
+            return hist;
+        }
+    }
+
+    private RateHistory(File file) {
+        mFile = file;
+        try {
+            mRaf = new RandomAccessFile(file, "rw");
+
+            // Drop a torn trailing record.
+            long length = mRaf.length();
+            if (length % RECORD_SIZE != 0) {
+                mLogger.warn("truncating partial record in " + file);
+                mRaf.setLength(length - length % RECORD_SIZE);
+            }
+            remap();
+        } catch (IOException ex) {
+            mLogger.warn("trouble opening " + file + ": " + ex.toString());
+            mRaf = null;
+        }
+    }
+
+    private void remap() throws IOException {
+        long length = mRaf.length();
+        mNumRecords = (int) (length / RECORD_SIZE);
+        mMap = mRaf.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                     0, (long) mNumRecords * RECORD_SIZE);
+    }
+
+    private long timeAt(int ndx) {
+        return mMap.getLong(ndx * RECORD_SIZE);
+    }
+
+    private double rateAt(int ndx) {
+        return mMap.getDouble(ndx * RECORD_SIZE + 8);
+    }
+
+    // Adds a rate observed at the given time.  Out of order times are
+    // ignored.
+    public synchronized void record(long time, double rate) {
+        if (mRaf == null || rate <= 0.0)
+            return;
+
+        try {
+            long lastTime = mNumRecords == 0 ? 0 : timeAt(mNumRecords - 1);
+            if (mNumRecords > 0 && time < lastTime)
+                return;
+
+            ByteBuffer rec = ByteBuffer.allocate(RECORD_SIZE);
+            if (mNumRecords > 0 && time - lastTime < RECORD_INTERVAL_MSECS) {
+                if (rateAt(mNumRecords - 1) == rate)
+                    return;
+                // Update the rate of the current interval's record.
+                rec.putLong(lastTime).putDouble(rate);
+                mRaf.seek((long) (mNumRecords - 1) * RECORD_SIZE);
+                mRaf.write(rec.array());
+            }
+            else {
+                rec.putLong(time).putDouble(rate);
+                mRaf.seek((long) mNumRecords * RECORD_SIZE);
+                mRaf.write(rec.array());
+                remap();
+            }
+        } catch (IOException ex) {
+            mLogger.warn("trouble writing " + mFile + ": " + ex.toString());
+        }
+    }
+
+    // Returns the rate in effect at the given time: the last one
+    // recorded at or before it.  Returns 0 if the time is before
+    // the history starts, since we don't know what the rate was.
+    public synchronized double rateAt(long time) {
+        if (mNumRecords == 0)
+            return 0.0;
+
+        // Find the last record with a time <= time.
+        int lo = 0;
+        int hi = mNumRecords - 1;
+        if (timeAt(lo) > time)
+            return 0.0;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (timeAt(mid) <= time)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return rateAt(lo);
+    }
+
+    public synchronized int size() {
+        return mNumRecords;
+    }
+}
@@ -0,0 +1,209 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.btcreceive;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.HashMap;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.conn.ClientConnectionManager;
+import org.apache.http.conn.scheme.PlainSocketFactory;
+import org.apache.http.conn.scheme.Scheme;
+import org.apache.http.conn.scheme.SchemeRegistry;
+import org.apache.http.conn.ssl.SSLSocketFactory;
+import org.apache.http.impl.client.DefaultHttpClient;
+import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
+import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
+import org.apache.http.params.HttpParams;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import android.util.JsonReader;
+import android.util.JsonToken;
+
+// HTTP transport shared by all the RateUpdaters.
+//
+// Connections are pooled and kept alive between polls so we don't
+// pay for a TLS handshake every time.  The ETag and Last-Modified
+// of each URL are remembered and sent back on the next request; if
+// the source says nothing changed we skip the parse entirely.
+//
+public class RateHttpClient {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(RateHttpClient.class);
+
+    private static final int TIMEOUT_MSECS = 15 * 1000;
+
+    private static RateHttpClient sInstance = null;
+
+    private static final Metrics.Counter sFetches =
+        Metrics.counter("rates.fetches");
+    private static final Metrics.Counter sNotModified =
+        Metrics.counter("rates.not_modified");
+    private static final Metrics.Histogram sFetchTime =
+        Metrics.histogram("rates.fetch_usecs");
+
+    private static class Validators {
+        public String	mETag;
+        public String	mLastModified;
+    }
+
+    private final DefaultHttpClient				mClient;
+    private final HashMap<String, Validators>	mValidators =
+        new HashMap<String, Validators>();
+
+    public static synchronized RateHttpClient getInstance() {
+        if (sInstance == null)
+            sInstance = new RateHttpClient();
+        return sInstance;
+    }
+
+    private RateHttpClient() {
+        HttpParams params = new BasicHttpParams();
+        HttpConnectionParams.setConnectionTimeout(params, TIMEOUT_MSECS);
+        HttpConnectionParams.setSoTimeout(params, TIMEOUT_MSECS);
+        HttpConnectionParams.setStaleCheckingEnabled(params, true);
+
+        SchemeRegistry registry = new SchemeRegistry();
+        registry.register(new Scheme("http",
+                                     PlainSocketFactory.getSocketFactory(),
+                                     80));
+        registry.register(new Scheme("https",
+                                     SSLSocketFactory.getSocketFactory(),
+                                     443));
+
+        ClientConnectionManager mgr =
+            new ThreadSafeClientConnManager(params, registry);
+        mClient = new DefaultHttpClient(mgr, params);
+    }
+
+    // Fetches a JSON document and returns the number found by
+    // following the path of object keys, eg. "bpi", "USD", "rate".
+    // Numbers sent as strings are accepted.  Returns null if the
+    // document hasn't changed since the last successful fetch.
+    //
+    public Double fetchNumber(String url, String... path)
+        throws IOException {
+        long startTime = Metrics.startTimer();
+        sFetches.inc();
+
+        HttpGet httpGet = new HttpGet(url);
+        Validators prev;
+        synchronized (mValidators) {
+            prev = mValidators.get(url);
+        }
+        if (prev != null) {
+            if (prev.mETag != null)
+                httpGet.addHeader("If-None-Match", prev.mETag);
+            if (prev.mLastModified != null)
+                httpGet.addHeader("If-Modified-Since", prev.mLastModified);
+        }
+
+        HttpResponse httpResponse = mClient.execute(httpGet);
+        HttpEntity httpEntity = httpResponse.getEntity();
+        try {
+            int status = httpResponse.getStatusLine().getStatusCode();
+            if (status == HttpStatus.SC_NOT_MODIFIED) {
+                sNotModified.inc();
+                return null;
+            }
+            if (status != HttpStatus.SC_OK || httpEntity == null)
+                throw new IOException("unexpected HTTP status " + status +
+                                      " from " + url);
+
+            InputStream is = httpEntity.getContent();
+            JsonReader reader =
+                new JsonReader(new InputStreamReader(is, "UTF-8"));
+            double value;
+            try {
+                value = findNumber(reader, path);
+            } finally {
+                reader.close();
+            }
+
+            // Only remember validators for documents we could parse.
+            Validators next = new Validators();
+            next.mETag = headerValue(httpResponse, "ETag");
+            next.mLastModified = headerValue(httpResponse, "Last-Modified");
+            synchronized (mValidators) {
+                if (next.mETag != null || next.mLastModified != null)
+                    mValidators.put(url, next);
+                else
+                    mValidators.remove(url);
+            }
+
+            sFetchTime.recordSince(startTime);
+            return value;
+        }
+        catch (IllegalStateException ex) {
+            // JsonReader reports malformed documents this way.
+            throw new IOException("malformed JSON from " + url + ": " +
+                                  ex.getMessage());
+        }
+        catch (NumberFormatException ex) {
+            throw new IOException("bad number from " + url + ": " +
+                                  ex.getMessage());
+        }
+        finally {
+            // Make sure the connection goes back to the pool.
+            if (httpEntity != null)
+                httpEntity.consumeContent();
+        }
+    }
+
+    // Forgets the validators so the next fetch gets a full document.
+    public void reset(String url) {
+        synchronized (mValidators) {
+            mValidators.remove(url);
+        }
+    }
+
+    private static String headerValue(HttpResponse resp, String name) {
+        Header hdr = resp.getFirstHeader(name);
+        return hdr == null ? null : hdr.getValue();
+    }
+
+    // Walks the stream down the path, skipping everything else, so
+    // only the value we want is ever materialized.
+    private static double findNumber(JsonReader reader, String[] path)
+        throws IOException {
+        for (String key : path) {
+            boolean found = false;
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals(key)) {
+                    found = true;
+                    break;
+                }
+                reader.skipValue();
+            }
+            if (!found)
+                throw new IOException("missing JSON field " + key);
+        }
+
+        if (reader.peek() == JsonToken.STRING)
+            return Double.parseDouble(reader.nextString().replace(",", ""));
+        return reader.nextDouble();
+    }
+}
@@ -0,0 +1,71 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.bonsai.btcreceive;
+
+import java.io.IOException;
+
+// A fiat rate published as a number in a JSON document.
+//
+public class RateSource {
+
+    public static final RateSource COINDESK_USD =
+        new RateSource("CoinDesk",
+                       "https://api.coindesk.com/v1/bpi/currentprice/USD.json",
+                       "bpi", "USD", "rate");
+
+    public static final RateSource BITSTAMP_USD =
+        new RateSource("BitStamp",
+                       "https://www.bitstamp.net/api/ticker/",
+                       "last");
+
+    private final String	mName;
+    private final String	mUrl;
+    private final String[]	mPath;
+
+    private double			mLastRate = 0.0;
+
+    public RateSource(String name, String url, String... path) {
+        mName = name;
+        mUrl = url;
+        mPath = path;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    // Returns the latest rate, or null if it hasn't changed since
+    // the last fetch.
+    public Double fetch() throws IOException {
+        return RateHttpClient.getInstance().fetchNumber(mUrl, mPath);
+    }
+
+    // Returns the current rate, using the last one fetched if the
+    // source says it hasn't changed.
+    public synchronized double fetchCurrent() throws IOException {
+        Double rate = fetch();
+        if (rate != null)
+            mLastRate = rate;
+        else if (mLastRate == 0.0) {
+            // We don't have the unchanged value; ask for it again.
+            RateHttpClient.getInstance().reset(mUrl);
+            rate = fetch();
+            if (rate == null)
+                throw new IOException(mName + " returned no rate");
+            mLastRate = rate;
+        }
+        return mLastRate;
+    }
+}
@@ -25,4 +25,8 @@ public interface RateUpdater {
 
     public String getCode();
 
+    // Returns msecs since the rate was last confirmed, or -1 if there
+    // is no rate.
+    public long getRateAge();
+
 }
@@ -16,19 +16,12 @@
 package com.bonsai.btcreceive;
 
 import java.math.BigInteger;
-import java.util.Hashtable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import com.google.bitcoin.core.Address;
 import com.google.bitcoin.uri.BitcoinURI;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
 import android.app.Activity;
 import android.content.BroadcastReceiver;
@@ -36,8 +29,8 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.os.Bundle;
+import android.os.Handler;
 import android.support.v4.app.Fragment;
 import android.support.v4.content.LocalBroadcastManager;
 import android.text.Editable;
@@ -62,8 +55,6 @@ public class ReceiveFragment extends Fragment {
 
     private BaseWalletActivity mBase;
 
-	private final static QRCodeWriter sQRCodeWriter = new QRCodeWriter();
-
     protected EditText mBTCAmountEditText = null;
     protected EditText mFiatAmountEditText = null;
     protected boolean mUserSetAmountFiat;
@@ -76,6 +67,14 @@ public class ReceiveFragment extends Fragment {
     protected HDAddress mHDAddress = null;
     protected boolean mTransitioned = false;
 
+    // The rate's age is shown once it's older than this.  It is
+    // rechecked periodically since a poll which confirms the rate
+    // doesn't broadcast.
+    private static final long RATE_STALE_MSECS = 10 * 60 * 1000;
+    private static final long RATE_AGE_CHECK_MSECS = 30 * 1000;
+
+    private final Handler mHandler = new Handler();
+
 	@Override
 	public void onCreate(Bundle savedInstanceState) {
         mLogger.info("ReceiveFragment onCreate");
@@ -114,6 +113,10 @@ public class ReceiveFragment extends Fragment {
         mLBM.registerReceiver(mRateChangedReceiver,
                               new IntentFilter("rate-changed"));
 
+        // Keep the rate fresh while amounts are being entered.
+        PollingRateUpdater.setForeground(true);
+        mHandler.post(mRateAgeChecker);
+
         mBTCAmountEditText =
             (EditText) getActivity().findViewById(R.id.receive_btc_amount);
         mFiatAmountEditText =
@@ -149,6 +152,8 @@ public class ReceiveFragment extends Fragment {
         mLogger.info("ReceiveFragment onPause");
         mLBM.unregisterReceiver(mWalletStateChangedReceiver);
         mLBM.unregisterReceiver(mRateChangedReceiver);
+        PollingRateUpdater.setForeground(false);
+        mHandler.removeCallbacks(mRateAgeChecker);
         super.onPause();
     }
 
@@ -199,6 +204,38 @@ public class ReceiveFragment extends Fragment {
             }
         };
 
+    private final Runnable mRateAgeChecker = new Runnable() {
+            public void run() {
+                updateRateAge();
+                mHandler.postDelayed(this, RATE_AGE_CHECK_MSECS);
+            }
+        };
+
+    // Warn if the rate we're quoting is missing or stale.  Called by
+    // our parent when it has a new rate.
+    public void updateRateAge() {
+        if (getActivity() == null)
+            return;
+        TextView tv =
+            (TextView) getActivity().findViewById(R.id.receive_rate_age);
+        if (tv == null)
+            return;
+
+        long age = mBase.fiatRateAge();
+        if (mBase.fiatPerBTC() == 0.0) {
+            tv.setText(R.string.receive_rate_none);
+            tv.setVisibility(View.VISIBLE);
+        }
+        else if (age > RATE_STALE_MSECS) {
+            tv.setText(getString(R.string.receive_rate_stale,
+                                 (int) (age / (60 * 1000))));
+            tv.setVisibility(View.VISIBLE);
+        }
+        else {
+            tv.setVisibility(View.GONE);
+        }
+    }
+
     public void maybeShowKeyboard() {
         // Called by our parent when it would be good for us to
         // bring up the keyboard.
@@ -396,7 +433,7 @@ public class ReceiveFragment extends Fragment {
             (int) (240 * getResources().getDisplayMetrics().density);
 
         // Load the QR bitmap.
-        Bitmap bm = createBitmap(uri, size);
+        Bitmap bm = QRRenderer.render(uri, size);
         if (bm != null) {
             ImageView iv =
                 (ImageView) getActivity().findViewById(R.id.receive_qr_view);
@@ -435,44 +472,6 @@ public class ReceiveFragment extends Fragment {
         mBTCAmountEditText.setFocusableInTouchMode(true);
     }
 
-    private Bitmap createBitmap(String content, final int size) {
-        final Hashtable<EncodeHintType, Object> hints =
-            new Hashtable<EncodeHintType, Object>();
-        hints.put(EncodeHintType.MARGIN, 0);
-        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H);
-        BitMatrix result;
-		try {
-			result = sQRCodeWriter.encode(content,
-                                          BarcodeFormat.QR_CODE,
-                                          size,
-                                          size,
-                                          hints);
-		} catch (WriterException ex) {
-            mLogger.warn("qr encoder failed: " + ex.toString());
-            return null;
-		}
-
-        final int width = result.getWidth();
-        final int height = result.getHeight();
-        final int[] pixels = new int[width * height];
-
-        for (int y = 0; y < height; y++)
-        {
-            final int offset = y * width;
-            for (int x = 0; x < width; x++)
-            {
-                pixels[offset + x] =
-                    result.get(x, y) ? Color.BLACK : Color.TRANSPARENT;
-            }
-        }
-
-        final Bitmap bitmap =
-            Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-
-        return bitmap;
-    }
-
     private static double parseNumberWorkaround(String numstr)
         throws NumberFormatException {
         // Some countries use comma as the decimal separator.
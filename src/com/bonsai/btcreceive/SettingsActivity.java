@@ -49,6 +49,11 @@ public class SettingsActivity extends PreferenceActivity {
 
     public static final String KEY_BTC_UNITS = "pref_btcUnits";
     public static final String KEY_FIAT_RATE_SOURCE = "pref_fiatRateSource";
+    public static final String KEY_RATE_MIN_CHANGE = "pref_rateMinChange";
+    public static final String KEY_RATE_MIN_INTERVAL = "pref_rateMinInterval";
+    public static final String KEY_WALLET_CHANGE_WINDOW =
+        "pref_walletChangeWindow";
+    public static final String KEY_COLLECT_METRICS = "pref_collectMetrics";
     public static final String KEY_RESCAN_BLOCKCHAIN = "pref_rescanBlockchain";
 
     private WalletService	mWalletService = null;
@@ -0,0 +1,125 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+//
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+//
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+//
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+package com.bonsai.btcreceive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeSet;
+
+import com.google.bitcoin.core.Sha256Hash;
+import com.google.bitcoin.core.Transaction;
+import com.google.bitcoin.wallet.WalletTransaction;
+
+// Index of the wallet's transactions, most recent first.
+//
+// Kept up to date by update() on each wallet change; only new
+// transactions and ones whose update time moved are (re)inserted.
+// Pages are read by walking the ordered index from the front, so
+// reading a page costs its offset plus its size however large the
+// history is; the screens read from the front.
+//
+public class TransactionHistory {
+
+    private static class Entry implements Comparable<Entry> {
+        public final long			mTime;
+        public final Sha256Hash		mHash;
+        public WalletTransaction	mWtx;
+        public int					mPass;
+
+        public Entry(long time, Sha256Hash hash) {
+            mTime = time;
+            mHash = hash;
+        }
+
+        // Newest first; the hash keeps transactions in the same
+        // block (same time) in a stable order.
+        public int compareTo(Entry other) {
+            if (mTime != other.mTime)
+                return mTime > other.mTime ? -1 : 1;
+            return -mHash.compareTo(other.mHash);
+        }
+    }
+
+    private final HashMap<Sha256Hash, Entry>	mByHash =
+        new HashMap<Sha256Hash, Entry>();
+    private final TreeSet<Entry>				mOrdered =
+        new TreeSet<Entry>();
+    private int									mPass = 0;
+
+    // Brings the index in line with the wallet's transactions.
+    public synchronized void update(Iterable<WalletTransaction> iwt) {
+        int pass = ++mPass;
+        int seen = 0;
+
+        for (WalletTransaction wtx : iwt) {
+            Transaction tx = wtx.getTransaction();
+            long time = tx.getUpdateTime().getTime();
+            Entry entry = mByHash.get(tx.getHash());
+            if (entry == null || entry.mTime != time) {
+                if (entry != null)
+                    mOrdered.remove(entry);
+                entry = new Entry(time, tx.getHash());
+                mByHash.put(entry.mHash, entry);
+                mOrdered.add(entry);
+            }
+            entry.mWtx = wtx;
+            entry.mPass = pass;
+            ++seen;
+        }
+
+        // Drop transactions no longer in the wallet.
+        if (seen != mOrdered.size()) {
+            ArrayList<Entry> gone = new ArrayList<Entry>();
+            for (Entry entry : mOrdered)
+                if (entry.mPass != pass)
+                    gone.add(entry);
+            for (Entry entry : gone) {
+                mOrdered.remove(entry);
+                mByHash.remove(entry.mHash);
+            }
+        }
+    }
+
+    public synchronized void clear() {
+        mByHash.clear();
+        mOrdered.clear();
+    }
+
+    public synchronized int size() {
+        return mOrdered.size();
+    }
+
+    // Returns up to count transactions starting at offset, most
+    // recent first.
+    public synchronized List<WalletTransaction> getPage(int offset,
+                                                        int count) {
+        if (offset >= mOrdered.size() || count <= 0)
+            return Collections.emptyList();
+
+        int end = Math.min(offset + count, mOrdered.size());
+        ArrayList<WalletTransaction> page =
+            new ArrayList<WalletTransaction>(end - offset);
+        Iterator<Entry> it = mOrdered.iterator();
+        for (int ii = 0; ii < end; ++ii) {
+            Entry entry = it.next();
+            if (ii >= offset)
+                page.add(entry.mWtx);
+        }
+        return page;
+    }
+}
@@ -15,16 +15,14 @@
 
 package com.bonsai.btcreceive;
 
+import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Comparator;
-import java.util.Date;
+import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
@@ -41,10 +39,13 @@ import android.support.v4.app.Fragment;
 import android.support.v4.content.LocalBroadcastManager;
 import android.view.LayoutInflater;
 import android.view.View;
-import android.view.View.OnClickListener;
 import android.view.ViewGroup;
-import android.widget.TableLayout;
-import android.widget.TableRow;
+import android.widget.AbsListView;
+import android.widget.AbsListView.OnScrollListener;
+import android.widget.AdapterView;
+import android.widget.AdapterView.OnItemClickListener;
+import android.widget.BaseAdapter;
+import android.widget.ListView;
 import android.widget.TextView;
 
 public class TransactionsFragment extends Fragment {
@@ -67,6 +68,44 @@ public class TransactionsFragment extends Fragment {
 	public void onActivityCreated(Bundle savedInstanceState) {
         mLogger.info("TransactionsFragment onActivityCreated");
 		super.onActivityCreated(savedInstanceState);
+
+        mAdapter = new TransactionAdapter();
+        ListView list =
+            (ListView) getActivity().findViewById(R.id.transaction_list);
+        list.setAdapter(mAdapter);
+        list.setOnItemClickListener(new OnItemClickListener() {
+                @Override
+                public void onItemClick(AdapterView<?> parent, View view,
+                                        int position, long id) {
+                    // Dispatch to the transaction viewer.
+                    String hash = mAdapter.getItem(position).hash;
+                    Intent intent = new Intent(getActivity(),
+                                               ViewTransactionActivity.class);
+                    intent.putExtra("hash", hash);
+                    startActivity(intent);
+                }
+            });
+        list.setOnScrollListener(new OnScrollListener() {
+                @Override
+                public void onScrollStateChanged(AbsListView view,
+                                                 int scrollState) {
+                }
+
+                @Override
+                public void onScroll(AbsListView view,
+                                     int firstVisibleItem,
+                                     int visibleItemCount,
+                                     int totalItemCount) {
+                    // Fetch the next page when the end comes in view.
+                    if (mHasMore && !mUpdating &&
+                        firstVisibleItem + visibleItemCount >=
+                        totalItemCount - PAGE_SIZE / 5) {
+                        mHasMore = false;
+                        mNumWanted += PAGE_SIZE;
+                        updateTransactions();
+                    }
+                }
+            });
 	}
 
 	@Override
@@ -89,6 +128,9 @@ public class TransactionsFragment extends Fragment {
         mLBM.registerReceiver(mRateChangedReceiver,
                               new IntentFilter("rate-changed"));
 
+        // The units may have changed in the Settings.
+        setupHeader();
+
         mLogger.info("TransactionsFragment resumed");
     }
 
@@ -119,84 +161,13 @@ public class TransactionsFragment extends Fragment {
             }
         };
 
-    private void addTransactionHeader(TableLayout table) {
-        TableRow row =
-            (TableRow) LayoutInflater.from(getActivity())
-            .inflate(R.layout.transaction_table_header, table, false);
-
-        TextView tv = (TextView) row.findViewById(R.id.header_btc);
+    private void setupHeader() {
+        TextView tv = (TextView) getActivity().findViewById(R.id.header_btc);
         tv.setText(BaseWalletActivity.getBTCFmt().unitStr());
-
-        table.addView(row);
     }
 
-    private void addTransactionRow(String hash,
-                                   TableLayout table,
-                                   String datestr,
-                                   String timestr,
-                                   String confstr,
-                                   String btcstr,
-                                   String btcbalstr,
-                                   String fiatstr,
-                                   String fiatbalstr,
-                                   boolean tintrow) {
-        TableRow row =
-            (TableRow) LayoutInflater.from(getActivity())
-            .inflate(R.layout.transaction_table_row, table, false);
-
-        row.setTag(hash);
-
-        row.setOnClickListener(new OnClickListener() {
-                @Override
-                public void onClick(View view) {
-                    // Dispatch to the transaction viewer.
-                    String hash = (String) view.getTag();
-                    Intent intent = new Intent(getActivity(),
-                                               ViewTransactionActivity.class);
-                    intent.putExtra("hash", hash);
-                    startActivity(intent);
-                }
-            }); 
-
-        {
-            TextView tv = (TextView) row.findViewById(R.id.row_date);
-            tv.setText(datestr);
-        }
-        {
-            TextView tv = (TextView) row.findViewById(R.id.row_time);
-            tv.setText(timestr);
-        }
-
-        {
-            TextView tv = (TextView) row.findViewById(R.id.row_confidence);
-            tv.setText(confstr);
-        }
-
-        {
-            TextView tv = (TextView) row.findViewById(R.id.row_btc_balance);
-            tv.setText(btcbalstr);
-        }
-        {
-            TextView tv = (TextView) row.findViewById(R.id.row_btc);
-            tv.setText(btcstr);
-        }
-
-        {
-            TextView tv = (TextView) row.findViewById(R.id.row_fiat_balance);
-            tv.setText(fiatbalstr);
-        }
-        {
-            TextView tv = (TextView) row.findViewById(R.id.row_fiat);
-            tv.setText(fiatstr);
-        }
-
-        if (tintrow)
-            row.setBackgroundColor(Color.parseColor("#ccffcc"));
-
-        table.addView(row);
-    }
-
-    private class RowData {
+    private static class RowData {
+        public long id;
         public String hash;
         public String datestr;
         public String timestr;
@@ -206,7 +177,8 @@ public class TransactionsFragment extends Fragment {
         public String fiatstr;
         public String fiatbalstr;
 
-        public RowData(String hash,
+        public RowData(long id,
+                       String hash,
                        String datestr,
                        String timestr,
                        String confstr,
@@ -214,6 +186,7 @@ public class TransactionsFragment extends Fragment {
                        String btcbalstr,
                        String fiatstr,
                        String fiatbalstr) {
+            this.id = id;
             this.hash = hash;
             this.datestr = datestr;
             this.timestr = timestr;
@@ -223,16 +196,145 @@ public class TransactionsFragment extends Fragment {
             this.fiatstr = fiatstr;
             this.fiatbalstr = fiatbalstr;
         }
+
+        // True if the row would display the same.
+        public boolean sameAs(RowData rd) {
+            return hash.equals(rd.hash) &&
+                datestr.equals(rd.datestr) &&
+                timestr.equals(rd.timestr) &&
+                confstr.equals(rd.confstr) &&
+                btcstr.equals(rd.btcstr) &&
+                btcbalstr.equals(rd.btcbalstr) &&
+                fiatstr.equals(rd.fiatstr) &&
+                fiatbalstr.equals(rd.fiatbalstr);
+        }
     };
 
+    // Views of a recycled row, and the data they currently show.
+    private static class RowViews {
+        public TextView date;
+        public TextView time;
+        public TextView conf;
+        public TextView btc;
+        public TextView btcbal;
+        public TextView fiat;
+        public TextView fiatbal;
+        public RowData bound;
+        public boolean tinted;
+    }
+
+    // Backs the transaction list.  Rows are only inflated for the
+    // visible part of the list and are recycled as it scrolls.
+    private class TransactionAdapter extends BaseAdapter {
+        private ArrayList<RowData> mRows = new ArrayList<RowData>();
+
+        // Installs new rows.  Returns false if nothing would change.
+        public boolean update(ArrayList<RowData> rows) {
+            if (rows.size() == mRows.size()) {
+                boolean same = true;
+                for (int ii = 0; ii < rows.size() && same; ++ii)
+                    same = rows.get(ii).sameAs(mRows.get(ii));
+                if (same)
+                    return false;
+            }
+            mRows = rows;
+            notifyDataSetChanged();
+            return true;
+        }
+
+        @Override
+        public int getCount() {
+            return mRows.size();
+        }
+
+        @Override
+        public RowData getItem(int position) {
+            return mRows.get(position);
+        }
+
+        @Override
+        public long getItemId(int position) {
+            return mRows.get(position).id;
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent) {
+            View row = convertView;
+            RowViews rv;
+            if (row == null) {
+                row = LayoutInflater.from(getActivity())
+                    .inflate(R.layout.transaction_table_row, parent, false);
+                rv = new RowViews();
+                rv.date = (TextView) row.findViewById(R.id.row_date);
+                rv.time = (TextView) row.findViewById(R.id.row_time);
+                rv.conf = (TextView) row.findViewById(R.id.row_confidence);
+                rv.btc = (TextView) row.findViewById(R.id.row_btc);
+                rv.btcbal = (TextView) row.findViewById(R.id.row_btc_balance);
+                rv.fiat = (TextView) row.findViewById(R.id.row_fiat);
+                rv.fiatbal =
+                    (TextView) row.findViewById(R.id.row_fiat_balance);
+                row.setTag(rv);
+            }
+            else {
+                rv = (RowViews) row.getTag();
+            }
+
+            // Only touch the views if what they show changed.
+            RowData rd = mRows.get(position);
+            if (rv.bound == null || !rv.bound.sameAs(rd)) {
+                rv.date.setText(rd.datestr);
+                rv.time.setText(rd.timestr);
+                rv.conf.setText(rd.confstr);
+                rv.btc.setText(rd.btcstr);
+                rv.btcbal.setText(rd.btcbalstr);
+                rv.fiat.setText(rd.fiatstr);
+                rv.fiatbal.setText(rd.fiatbalstr);
+                rv.bound = rd;
+            }
+
+            boolean tintrow = position % 2 == 0;
+            if (tintrow != rv.tinted || convertView == null) {
+                row.setBackgroundColor(tintrow ?
+                                       Color.parseColor("#ccffcc") :
+                                       Color.TRANSPARENT);
+                rv.tinted = tintrow;
+            }
+
+            return row;
+        }
+    }
+
+    private TransactionAdapter mAdapter;
+
+    // Transactions are loaded a page at a time as the list is
+    // scrolled toward the end.
+    private static final int PAGE_SIZE = 50;
+
+    private int mNumWanted = PAGE_SIZE;
+    private boolean mHasMore = false;
+
     private class UpdateTransactionsTask extends AsyncTask<Void, Void, Void> {
         private WalletService walletService;
         private ArrayList<RowData> rowdata;
+        private RateHistory ratehist;
+        private double fiatPerBTC;
+        private int numWanted;
+        private boolean hasMore;
         
         @Override
         protected void onPreExecute() {
-            walletService =
-                ((BaseWalletActivity) getActivity()).getWalletService();
+            BaseWalletActivity base = (BaseWalletActivity) getActivity();
+            walletService = base.getWalletService();
+            fiatPerBTC = base.fiatPerBTC();
+            numWanted = mNumWanted;
+            if (walletService != null)
+                ratehist = RateHistory.getInstance(base,
+                                                   walletService.getCode());
         }
 
 		protected Void doInBackground(Void... params)
@@ -240,8 +342,6 @@ public class TransactionsFragment extends Fragment {
             if (walletService == null)
                 return null;
 
-            rowdata = new ArrayList<RowData>();
-
             mLogger.info("UpdateTransactionsTask doInBackground starting");
 
             SimpleDateFormat dateFormater =
@@ -249,34 +349,15 @@ public class TransactionsFragment extends Fragment {
             SimpleDateFormat timeFormater =
                 new SimpleDateFormat("kk:mm:ss");
 
-            Iterable<WalletTransaction> txit = walletService.getTransactions();
+            // Only the pages loaded so far, most recent first.
+            List<WalletTransaction> txs =
+                walletService.getTransactionPage(0, numWanted);
             // If we've been called before things are setup just bail.
-            if (txit == null)
+            if (txs == null)
                 return null;
+            hasMore = txs.size() == numWanted;
 
-            ArrayList<WalletTransaction> txs =
-                new ArrayList<WalletTransaction>();
-            for (WalletTransaction wtx : txit)
-                txs.add(wtx);
-            // Sort in reverse time order (most recent first).
-            Collections.sort(txs, new Comparator<WalletTransaction>() {
-                    public int compare(WalletTransaction wt0,
-                                       WalletTransaction wt1) {
-                        Date dt0 = wt0.getTransaction().getUpdateTime();
-                        Date dt1 = wt1.getTransaction().getUpdateTime();
-                        int cmp = -dt0.compareTo(dt1);
-                        if (cmp == 0) {
-                            // These two transactions happened in the
-                            // same block (same time) so we should
-                            // compare something else to keep the
-                            // sorting order stable.
-                            Sha256Hash h0 = wt0.getTransaction().getHash();
-                            Sha256Hash h1 = wt1.getTransaction().getHash();
-                            return -h0.compareTo(h1);
-                        }
-                        return cmp;
-                    }
-                });
+            rowdata = new ArrayList<RowData>();
 
             long btcbal = walletService.balanceForAccount();
         
@@ -287,14 +368,25 @@ public class TransactionsFragment extends Fragment {
 
                 long btc = walletService.amountForAccount(wtx);
                 if (btc != 0) {
+                    // Value the transaction at the rate in effect
+                    // when it happened.  Transactions older than our
+                    // rate history get the current rate, marked as
+                    // approximate so it isn't mistaken for history.
+                    double rate =
+                        ratehist.rateAt(tx.getUpdateTime().getTime());
+                    String approx = "";
+                    if (rate == 0.0) {
+                        rate = fiatPerBTC;
+                        approx = "~";
+                    }
                     double fiat = BaseWalletActivity.getBTCFmt().fiatAtRate
-                        (btc, ((BaseWalletActivity) getActivity())
-                         .fiatPerBTC());
+                        (btc, rate);
                     double fiatbal = BaseWalletActivity.getBTCFmt().fiatAtRate
-                        (btcbal, ((BaseWalletActivity) getActivity())
-                         .fiatPerBTC());
+                        (btcbal, rate);
 
                     String hash = tx.getHashAsString();
+                    long id = ByteBuffer.wrap(tx.getHash().getBytes())
+                        .getLong();
 
                     String datestr = dateFormater.format(tx.getUpdateTime());
                     String timestr = timeFormater.format(tx.getUpdateTime());
@@ -304,8 +396,9 @@ public class TransactionsFragment extends Fragment {
                     String btcbalstr = BaseWalletActivity.getBTCFmt()
                         .formatCol(btcbal, 0, true);
 
-                    String fiatstr = String.format("%.02f", fiat);
-                    String fiatbalstr = String.format("%.02f", fiatbal);
+                    String fiatstr = String.format("%s%.02f", approx, fiat);
+                    String fiatbalstr =
+                        String.format("%s%.02f", approx, fiatbal);
 
                     String confstr;
                     switch (ct) {
@@ -320,7 +413,7 @@ public class TransactionsFragment extends Fragment {
                     default: confstr = "?"; break;
                     }
 
-                    rowdata.add(new RowData(hash, datestr, timestr, confstr,
+                    rowdata.add(new RowData(id, hash, datestr, timestr, confstr,
                                             btcstr, btcbalstr,
                                             fiatstr, fiatbalstr));
                 }
@@ -343,25 +436,10 @@ public class TransactionsFragment extends Fragment {
 
                 mLogger.info("UpdateTransactionsTask onPostExecute starting");
 
-                TableLayout table = (TableLayout) getActivity()
-                    .findViewById(R.id.transaction_table);
-
-                // Clear any existing table content.
-                table.removeAllViews();
-
-                addTransactionHeader(table);
-
-                int rowcounter = 0;
-                for (RowData rd : rowdata) {
-                    boolean tintrow = rowcounter % 2 == 0;
-                    ++rowcounter;
-
-                    addTransactionRow(rd.hash, table, rd.datestr,
-                                      rd.timestr, rd.confstr,
-                                      rd.btcstr, rd.btcbalstr,
-                                      rd.fiatstr, rd.fiatbalstr,
-                                      tintrow);
-                }
+                // Only the visible rows that changed are redrawn.
+                if (rowdata != null && !mAdapter.update(rowdata))
+                    mLogger.info("transactions unchanged");
+                mHasMore = hasMore;
             }
             finally {
                 mUpdating = false;
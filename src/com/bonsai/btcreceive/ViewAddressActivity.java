@@ -16,14 +16,12 @@
 package com.bonsai.btcreceive;
 
 import java.math.BigInteger;
-import java.util.Hashtable;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.Color;
 import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
@@ -31,12 +29,6 @@ import android.widget.ImageView;
 import android.widget.TextView;
 
 import com.google.bitcoin.uri.BitcoinURI;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
 public class ViewAddressActivity extends BaseWalletActivity {
 
@@ -49,8 +41,6 @@ public class ViewAddressActivity extends BaseWalletActivity {
 
     private String mURI;
 
-	private final static QRCodeWriter sQRCodeWriter = new QRCodeWriter();
-
 	@Override
 	protected void onCreate(Bundle savedInstanceState) {
 
@@ -71,7 +61,7 @@ public class ViewAddressActivity extends BaseWalletActivity {
         final int size =
             (int) (240 * getResources().getDisplayMetrics().density);
 
-        Bitmap bm = createBitmap(mURI, size);
+        Bitmap bm = QRRenderer.render(mURI, size);
         if (bm != null) {
             ImageView iv = (ImageView) findViewById(R.id.address_qr_view);
             iv.setImageBitmap(bm);
@@ -102,44 +92,6 @@ public class ViewAddressActivity extends BaseWalletActivity {
         amttv.setText(amtstr);
     }
 
-    private Bitmap createBitmap(String content, final int size) {
-        final Hashtable<EncodeHintType, Object> hints =
-            new Hashtable<EncodeHintType, Object>();
-        hints.put(EncodeHintType.MARGIN, 0);
-        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H);
-        BitMatrix result;
-		try {
-			result = sQRCodeWriter.encode(content,
-                                          BarcodeFormat.QR_CODE,
-                                          size,
-                                          size,
-                                          hints);
-		} catch (WriterException ex) {
-            mLogger.warn("qr encoder failed: " + ex.toString());
-            return null;
-		}
-
-        final int width = result.getWidth();
-        final int height = result.getHeight();
-        final int[] pixels = new int[width * height];
-
-        for (int y = 0; y < height; y++)
-        {
-            final int offset = y * width;
-            for (int x = 0; x < width; x++)
-            {
-                pixels[offset + x] =
-                    result.get(x, y) ? Color.BLACK : Color.TRANSPARENT;
-            }
-        }
-
-        final Bitmap bitmap =
-            Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-
-        return bitmap;
-    }
-
     public void sendAddress(View view) {
         Intent intent=new Intent(android.content.Intent.ACTION_SEND);
         intent.setType("text/plain");
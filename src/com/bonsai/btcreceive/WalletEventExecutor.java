@@ -0,0 +1,138 @@
+// Copyright (C) 2014  Bonsai Software, Inc.
+// 
+// This program is free software: you can redistribute it and/or modify
+// it under the terms of the GNU General Public License as published by
+// the Free Software Foundation, either version 3 of the License, or
+// (at your option) any later version.
+// 
+// This program is distributed in the hope that it will be useful,
+// but WITHOUT ANY WARRANTY; without even the implied warranty of
+// MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+// GNU General Public License for more details.
+// 
+// You should have received a copy of the GNU General Public License
+// along with this program.  If not, see <http://www.gnu.org/licenses/>.
+
+package com.bonsai.btcreceive;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+// Runs WalletService's wallet event processing on a single thread of
+// it's own so slow work doesn't hold up bitcoinj's user thread.
+// Events run in the order they were submitted.  The queue is bounded;
+// when it's full the submitter blocks until there is room rather
+// than running the event itself, which would break the ordering.
+//
+// Since the event thread takes the wallet lock, nothing may submit
+// while holding it; bitcoinj must not be handed this executor for
+// its listeners.
+// 
+public class WalletEventExecutor implements Executor {
+
+    private static Logger mLogger =
+        LoggerFactory.getLogger(WalletEventExecutor.class);
+
+    private final ThreadPoolExecutor	mExecutor;
+
+    // Latency is measured from submission to completion.
+    private long	mNumEvents = 0;
+    private long	mLastLatency = 0;
+    private long	mMaxLatency = 0;
+    private long	mTotalLatency = 0;
+    private int		mMaxDepth = 0;
+
+    public WalletEventExecutor(int capacity) {
+        mExecutor = new ThreadPoolExecutor
+            (1, 1, 0L, TimeUnit.MILLISECONDS,
+             new ArrayBlockingQueue<Runnable>(capacity),
+             new ThreadFactory() {
+                 public Thread newThread(Runnable rr) {
+                     Thread thread = new Thread(rr, "WalletService events");
+                     thread.setDaemon(true);
+                     return thread;
+                 }
+             },
+             new RejectedExecutionHandler() {
+                 public void rejectedExecution(Runnable rr,
+                                               ThreadPoolExecutor executor) {
+                     if (executor.isShutdown())
+                         throw new RejectedExecutionException("shut down");
+                     mLogger.warn("wallet event queue full, waiting");
+                     try {
+                         executor.getQueue().put(rr);
+                     } catch (InterruptedException ex) {
+                         Thread.currentThread().interrupt();
+                         throw new RejectedExecutionException(ex);
+                     }
+                 }
+             });
+    }
+
+    public void execute(final Runnable event) {
+        final long submitted = System.currentTimeMillis();
+        mExecutor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        event.run();
+                    } catch (RuntimeException ex) {
+                        // Don't let one bad event kill the thread.
+                        mLogger.error("wallet event failed", ex);
+                    }
+                    finally {
+                        recordLatency(System.currentTimeMillis() - submitted);
+                    }
+                }
+            });
+        recordDepth(mExecutor.getQueue().size());
+    }
+
+    private synchronized void recordDepth(int depth) {
+        if (depth > mMaxDepth)
+            mMaxDepth = depth;
+    }
+
+    private synchronized void recordLatency(long latency) {
+        ++mNumEvents;
+        mLastLatency = latency;
+        mTotalLatency += latency;
+        if (latency > mMaxLatency)
+            mMaxLatency = latency;
+    }
+
+    public int getQueueDepth() {
+        return mExecutor.getQueue().size();
+    }
+
+    public synchronized int getMaxQueueDepth() {
+        return mMaxDepth;
+    }
+
+    public synchronized long getNumEvents() {
+        return mNumEvents;
+    }
+
+    public synchronized long getLastLatency() {
+        return mLastLatency;
+    }
+
+    public synchronized long getMaxLatency() {
+        return mMaxLatency;
+    }
+
+    public synchronized long getAverageLatency() {
+        return mNumEvents == 0 ? 0 : mTotalLatency / mNumEvents;
+    }
+
+    public void shutdown() {
+        mExecutor.shutdown();
+    }
+}
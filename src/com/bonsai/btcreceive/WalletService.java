@@ -22,6 +22,14 @@ import java.math.BigInteger;
 import java.text.DateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -59,7 +67,6 @@ import com.google.bitcoin.core.NetworkParameters;
 import com.google.bitcoin.core.Sha256Hash;
 import com.google.bitcoin.core.Transaction;
 import com.google.bitcoin.core.TransactionBroadcaster;
-import com.google.bitcoin.core.TransactionConfidence;
 import com.google.bitcoin.core.TransactionConfidence.ConfidenceType;
 import com.google.bitcoin.core.TransactionInput;
 import com.google.bitcoin.core.TransactionOutPoint;
@@ -119,6 +126,7 @@ public class WalletService extends Service
     private int					mBlocksToGo;
     private Date				mScanDate;
     private long				mMsecsLeft;
+    private double				mBlocksPerSec;
 
     private KeyCrypter			mKeyCrypter;
     private KeyParameter		mAesKey;
@@ -126,6 +134,8 @@ public class WalletService extends Service
 
     private RateUpdater			mRateUpdater;
 
+    private final TransactionHistory	mHistory = new TransactionHistory();
+
     private BigInteger			mBalanceAvailable;
     private BigInteger			mBalanceEstimated;
 
@@ -135,6 +145,12 @@ public class WalletService extends Service
 
     private static final String mFilePrefix = "btcreceive";
 
+    // When we entered the current State, for the per-state times.
+    private long				mStateTime = System.currentTimeMillis();
+
+    private static final Metrics.Counter sRescans =
+        Metrics.counter("wallet.rescans");
+
     private MyDownloadListener mkDownloadListener() {
         return new MyDownloadListener() {
             protected void progress(double pct, int blocksToGo, Date date, long msecsLeft) {
@@ -145,6 +161,7 @@ public class WalletService extends Service
                 mBlocksToGo = blocksToGo;
                 mScanDate = date;
                 mMsecsLeft = msecsLeft;
+                mBlocksPerSec = getBlocksPerSecond();
                 if (mPercentDone != pct) {
                     mPercentDone = pct;
                     setState(State.SYNCING);
@@ -153,213 +170,398 @@ public class WalletService extends Service
         };
     }
 
+    // Our wallet processing runs here rather than on bitcoinj's user
+    // thread.  The queue is bounded and a full queue blocks the
+    // submitter, so nothing may submit while holding the wallet lock
+    // (the event thread needs it).  The wallet listener therefore
+    // runs on the user thread and only hands events over, merging
+    // wallet-changed and confidence events so a sync can't flood the
+    // queue.
+    private static final int WALLET_EVENT_CAPACITY = 256;
+
+    private final WalletEventExecutor mEventExecutor =
+        new WalletEventExecutor(WALLET_EVENT_CAPACITY);
+
     private AbstractWalletEventListener mWalletListener =
         new AbstractWalletEventListener() {
             @Override
 			public void onCoinsReceived(Wallet wallet,
-                                        Transaction tx,
-                                        BigInteger prevBalance,
-                                        BigInteger newBalance)
+                                        final Transaction tx,
+                                        final BigInteger prevBalance,
+                                        final BigInteger newBalance)
             {
-                BigInteger amt = newBalance.subtract(prevBalance);
-                final long amount = amt.longValue();
-
-                WalletApplication app =
-                    (WalletApplication) getApplicationContext();
-                final BTCFmt btcfmt = app.getBTCFmt();
-
-                // Change coins will be part of a balance transaction
-                // that is negative in value ... skip them ...
-                if (amount < 0)
-                    return;
-
-                // We allocate a new notification id for each receive.
-                // We use it on both the receive and confirm so it
-                // will replace the receive note with the confirm ...
-                final int noteId = ++mNoteId;
-
-                mLogger.info(String.format("showing notification receive %d",
-                                           amount));
-
-                showEventNotification
-                    (noteId,
-                     R.drawable.ic_note_bc_green_lt,
-                     mRes.getString(R.string.wallet_service_note_rcvd_title,
-                                    btcfmt.unitStr()),
-                     mRes.getString(R.string.wallet_service_note_rcvd_msg,
-                                    btcfmt.format(amount), btcfmt.unitStr()));
-
-                final TransactionConfidence txconf = tx.getConfidence();
-
-                final TransactionConfidence.Listener listener = 
-                    new TransactionConfidence.Listener() {
-                        @Override
-                        public void onConfidenceChanged(Transaction tx,
-                                                        ChangeReason reason) {
-                            // Wait until it's not pending anymore.
-                            if (tx.isPending())
-                                return;
-                 
-                            ConfidenceType ct =
-                                tx.getConfidence().getConfidenceType();
-                        
-                            if (ct == ConfidenceType.BUILDING) {
-                                mLogger.info(String.format("receive %d confirm",
-                                                           amount));
-
-                                // Notify confirmed.
-                                showEventNotification
-                                    (noteId,
-                                     R.drawable.ic_note_bc_green,
-                                     mRes.getString
-                                     (R.string.wallet_service_note_rcnf_title,
-                                      btcfmt.unitStr()),
-                                     mRes.getString
-                                     (R.string.wallet_service_note_rcnf_msg,
-                                      btcfmt.format(amount), btcfmt.unitStr()));
-
-                            }
-                            else if (ct == ConfidenceType.DEAD) {
-                                mLogger.info(String.format("receive %d dead",
-                                                           amount));
-                                // Notify dead.
-                                showEventNotification
-                                    (noteId,
-                                     R.drawable.ic_note_bc_gray,
-                                     mRes.getString
-                                     (R.string.wallet_service_note_rdead_title,
-                                      btcfmt.unitStr()),
-                                     mRes.getString
-                                     (R.string.wallet_service_note_rdead_msg,
-                                      btcfmt.format(amount), btcfmt.unitStr()));
-
-                            }
-                            else {
-                                mLogger.info(String.format("receive %d unknown",
-                                                           amount));
-                            }
-
-                            // We're all done listening ...
-                            txconf.removeEventListener(this);
+                closeConfidenceBatch();
+                mEventExecutor.execute(new Runnable() {
+                        public void run() {
+                            handleCoinsReceived(tx, prevBalance, newBalance);
                         }
-                    };
-
-                txconf.addEventListener(listener);
+                    });
             }
 
             @Override
 			public void onCoinsSent(Wallet wallet,
-                                    Transaction tx,
-                                    BigInteger prevBalance,
-                                    BigInteger newBalance)
+                                    final Transaction tx,
+                                    final BigInteger prevBalance,
+                                    final BigInteger newBalance)
             {
-                BigInteger amt = prevBalance.subtract(newBalance);
-                final long amount = amt.longValue();
+                closeConfidenceBatch();
+                mEventExecutor.execute(new Runnable() {
+                        public void run() {
+                            handleCoinsSent(tx, prevBalance, newBalance);
+                        }
+                    });
+            }
 
-                WalletApplication app =
-                    (WalletApplication) getApplicationContext();
-                final BTCFmt btcfmt = app.getBTCFmt();
+            @Override
+            public void onTransactionConfidenceChanged(Wallet wallet,
+                                                       Transaction tx) {
+                queueConfidenceChange(tx);
+            }
 
-                // We allocate a new notification id for each receive.
-                // We use it on both the receive and confirm so it
-                // will replace the receive note with the confirm ...
-                final int noteId = ++mNoteId;
+            @Override
+            public void onWalletChanged(Wallet wallet) {
+                // Once we're synchronized process changes right away
+                // so payments show up promptly.  While syncing,
+                // collapse bursts of changes into one pass.
+                if (mState == State.READY &&
+                    mSyncState == SyncState.SYNCHRONIZED)
+                    queueWalletChange();
+                else
+                    scheduleWalletChange();
+            }
+        };
 
-                mLogger.info(String.format("showing notification send %d",
-                                           amount));
+    private void handleCoinsReceived(Transaction tx,
+                                     BigInteger prevBalance,
+                                     BigInteger newBalance)
+    {
+        BigInteger amt = newBalance.subtract(prevBalance);
+        final long amount = amt.longValue();
 
-                showEventNotification
-                    (noteId,
-                     R.drawable.ic_note_bc_red_lt,
-                     mRes.getString(R.string.wallet_service_note_sent_title,
-                                    btcfmt.unitStr()),
-                     mRes.getString(R.string.wallet_service_note_sent_msg,
-                                    btcfmt.format(amount), btcfmt.unitStr()));
+        WalletApplication app =
+            (WalletApplication) getApplicationContext();
+        final BTCFmt btcfmt = app.getBTCFmt();
 
-                final TransactionConfidence txconf = tx.getConfidence();
+        // Change coins will be part of a balance transaction
+        // that is negative in value ... skip them ...
+        if (amount < 0)
+            return;
 
-                final TransactionConfidence.Listener listener = 
-                    new TransactionConfidence.Listener() {
-                        @Override
-                        public void onConfidenceChanged(Transaction tx,
-                                                        ChangeReason reason) {
-                            // Wait until it's not pending anymore.
-                            if (tx.isPending())
-                                return;
-                 
-                            ConfidenceType ct =
-                                tx.getConfidence().getConfidenceType();
-                        
-                            if (ct == ConfidenceType.BUILDING) {
-                                mLogger.info(String.format("send %d confirm",
-                                                           amount));
-
-                                // Show no longer pending.
-                                showEventNotification
-                                    (noteId,
-                                     R.drawable.ic_note_bc_red,
-                                     mRes.getString
-                                     (R.string.wallet_service_note_scnf_title,
-                                      btcfmt.unitStr()),
-                                     mRes.getString
-                                     (R.string.wallet_service_note_scnf_msg,
-                                      btcfmt.format(amount), btcfmt.unitStr()));
-                            }
-                            else if (ct == ConfidenceType.DEAD) {
-                                mLogger.info(String.format("send %d dead",
-                                                           amount));
-                                // Notify dead.
-                                showEventNotification
-                                    (noteId,
-                                     R.drawable.ic_note_bc_gray,
-                                     mRes.getString
-                                     (R.string.wallet_service_note_sdead_title,
-                                      btcfmt.unitStr()),
-                                     mRes.getString
-                                     (R.string.wallet_service_note_sdead_msg,
-                                      btcfmt.format(amount), btcfmt.unitStr()));
-
-                            }
-                            else {
-                                mLogger.info(String.format("send %d unknown",
-                                                           amount));
-                            }
-
-                            // We're all done listening ...
-                            txconf.removeEventListener(this);
-                        }
-                    };
+        // We allocate a new notification id for each receive.
+        // We use it on both the receive and confirm so it
+        // will replace the receive note with the confirm ...
+        final int noteId = ++mNoteId;
+
+        mLogger.info(String.format("showing notification receive %d",
+                                   amount));
+
+        postEventNotification
+            (R.string.wallet_service_note_summary_rcvd, amount,
+             noteId,
+             R.drawable.ic_note_bc_green_lt,
+             mRes.getString(R.string.wallet_service_note_rcvd_title,
+                            btcfmt.unitStr()),
+             mRes.getString(R.string.wallet_service_note_rcvd_msg,
+                            btcfmt.format(amount), btcfmt.unitStr()));
+
+        // Watch for it to confirm or die.
+        watchTransaction(tx, noteId, amount, true);
+    }
 
-                txconf.addEventListener(listener);
+    private void handleCoinsSent(Transaction tx,
+                                 BigInteger prevBalance,
+                                 BigInteger newBalance)
+    {
+        BigInteger amt = prevBalance.subtract(newBalance);
+        final long amount = amt.longValue();
+
+        WalletApplication app =
+            (WalletApplication) getApplicationContext();
+        final BTCFmt btcfmt = app.getBTCFmt();
+
+        // We allocate a new notification id for each receive.
+        // We use it on both the receive and confirm so it
+        // will replace the receive note with the confirm ...
+        final int noteId = ++mNoteId;
+
+        mLogger.info(String.format("showing notification send %d",
+                                   amount));
+
+        postEventNotification
+            (R.string.wallet_service_note_summary_sent, amount,
+             noteId,
+             R.drawable.ic_note_bc_red_lt,
+             mRes.getString(R.string.wallet_service_note_sent_title,
+                            btcfmt.unitStr()),
+             mRes.getString(R.string.wallet_service_note_sent_msg,
+                            btcfmt.format(amount), btcfmt.unitStr()));
+
+        // Watch for it to confirm or die.
+        watchTransaction(tx, noteId, amount, false);
+    }
+
+    // Confidence changes are gathered into a batch which is checked
+    // by one queued task; a transaction changing many times before
+    // the task runs is checked once.  A coins event closes the batch
+    // so later changes are checked after it, in order.  Guarded by
+    // mWatched.
+    private LinkedHashMap<Sha256Hash, Transaction>	mConfBatch = null;
+
+    private void queueConfidenceChange(Transaction tx) {
+        final LinkedHashMap<Sha256Hash, Transaction> batch;
+        synchronized (mWatched) {
+            if (mConfBatch != null) {
+                mConfBatch.put(tx.getHash(), tx);
+                return;
             }
+            batch = new LinkedHashMap<Sha256Hash, Transaction>();
+            batch.put(tx.getHash(), tx);
+            mConfBatch = batch;
+        }
+        mEventExecutor.execute(new Runnable() {
+                public void run() {
+                    ArrayList<Transaction> txs;
+                    synchronized (mWatched) {
+                        if (mConfBatch == batch)
+                            mConfBatch = null;
+                        txs = new ArrayList<Transaction>(batch.values());
+                    }
+                    for (Transaction tx : txs)
+                        checkWatchedTransaction(tx);
+                }
+            });
+    }
 
-            @Override
-            public void onWalletChanged(Wallet wallet) {
-                // Compute balances and transaction counts.
-                Iterable<WalletTransaction> iwt =
-                    mKit.wallet().getWalletTransactions();
-                mHDReceiver.applyAllTransactions(iwt);
+    private void closeConfidenceBatch() {
+        synchronized (mWatched) {
+            mConfBatch = null;
+        }
+    }
 
-                // Check to make sure we have sufficient margins.
-                int maxExtended = mHDReceiver.ensureMargins(mKit.wallet());
+    // Transactions we've shown a receive or send notification for and
+    // are waiting to see confirm or die.  Entries are removed once
+    // the transaction is no longer pending.
+    private static class WatchedTx {
+        public final int		mNoteId;
+        public final long		mAmount;
+        public final boolean	mIsReceive;
+        public WatchedTx(int noteId, long amount, boolean isReceive) {
+            mNoteId = noteId;
+            mAmount = amount;
+            mIsReceive = isReceive;
+        }
+    }
 
-                // Persist the new state.
-                mHDReceiver.persist();
+    private final HashMap<Sha256Hash, WatchedTx> mWatched =
+        new HashMap<Sha256Hash, WatchedTx>();
 
-                Intent intent = new Intent("wallet-state-changed");
-                mLBM.sendBroadcast(intent);
+    private void watchTransaction(Transaction tx,
+                                  int noteId,
+                                  long amount,
+                                  boolean isReceive) {
+        synchronized (mWatched) {
+            mWatched.put(tx.getHash(),
+                         new WatchedTx(noteId, amount, isReceive));
+        }
+    }
 
-                if (maxExtended > HDChain.maxSafeExtend()) {
-                    mLogger.info(String.format("%d addresses added, rescanning",
-                                               maxExtended));
-                    rescanBlockchain(HDAddress.EPOCH);
+    private void checkWatchedTransaction(Transaction tx) {
+        WatchedTx wtx;
+        synchronized (mWatched) {
+            wtx = mWatched.get(tx.getHash());
+            if (wtx == null)
+                return;
+
+            // Wait until it's not pending anymore.
+            if (tx.isPending())
+                return;
+
+            // We're all done watching ...
+            mWatched.remove(tx.getHash());
+        }
+
+        WalletApplication app = (WalletApplication) getApplicationContext();
+        BTCFmt btcfmt = app.getBTCFmt();
+        String kind = wtx.mIsReceive ? "receive" : "send";
+
+        ConfidenceType ct = tx.getConfidence().getConfidenceType();
+        if (ct == ConfidenceType.BUILDING) {
+            mLogger.info(String.format("%s %d confirm", kind, wtx.mAmount));
+
+            // Notify confirmed.
+            if (wtx.mIsReceive)
+                postEventNotification
+                    (R.string.wallet_service_note_summary_rcnf, wtx.mAmount,
+                     wtx.mNoteId,
+                     R.drawable.ic_note_bc_green,
+                     mRes.getString(R.string.wallet_service_note_rcnf_title,
+                                    btcfmt.unitStr()),
+                     mRes.getString(R.string.wallet_service_note_rcnf_msg,
+                                    btcfmt.format(wtx.mAmount),
+                                    btcfmt.unitStr()));
+            else
+                postEventNotification
+                    (R.string.wallet_service_note_summary_scnf, wtx.mAmount,
+                     wtx.mNoteId,
+                     R.drawable.ic_note_bc_red,
+                     mRes.getString(R.string.wallet_service_note_scnf_title,
+                                    btcfmt.unitStr()),
+                     mRes.getString(R.string.wallet_service_note_scnf_msg,
+                                    btcfmt.format(wtx.mAmount),
+                                    btcfmt.unitStr()));
+        }
+        else if (ct == ConfidenceType.DEAD) {
+            mLogger.info(String.format("%s %d dead", kind, wtx.mAmount));
+
+            // Notify dead.
+            if (wtx.mIsReceive)
+                postEventNotification
+                    (R.string.wallet_service_note_summary_rdead, wtx.mAmount,
+                     wtx.mNoteId,
+                     R.drawable.ic_note_bc_gray,
+                     mRes.getString(R.string.wallet_service_note_rdead_title,
+                                    btcfmt.unitStr()),
+                     mRes.getString(R.string.wallet_service_note_rdead_msg,
+                                    btcfmt.format(wtx.mAmount),
+                                    btcfmt.unitStr()));
+            else
+                postEventNotification
+                    (R.string.wallet_service_note_summary_sdead, wtx.mAmount,
+                     wtx.mNoteId,
+                     R.drawable.ic_note_bc_gray,
+                     mRes.getString(R.string.wallet_service_note_sdead_title,
+                                    btcfmt.unitStr()),
+                     mRes.getString(R.string.wallet_service_note_sdead_msg,
+                                    btcfmt.format(wtx.mAmount),
+                                    btcfmt.unitStr()));
+        }
+        else {
+            mLogger.info(String.format("%s %d unknown", kind, wtx.mAmount));
+        }
+    }
+
+    // Wallet changes while syncing are processed at most once per
+    // this many msecs; set from the preferences.
+    private volatile long				mWalletChangeWindow = 2000;
+    private boolean						mWalletChangePending = false;
+    private boolean						mWalletChangeQueued = false;
+    private ScheduledExecutorService	mTimer = null;
+
+    // Timer for debounced and batched work.
+    private synchronized ScheduledExecutorService timer() {
+        if (mTimer == null) {
+            mTimer = Executors.newSingleThreadScheduledExecutor
+                (new ThreadFactory() {
+                        public Thread newThread(Runnable rr) {
+                            Thread thread =
+                                new Thread(rr, "WalletService timer");
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+        }
+        return mTimer;
+    }
+
+    // Stop the timer; anything still scheduled is dropped.
+    private synchronized void stopTimer() {
+        if (mTimer != null) {
+            mTimer.shutdownNow();
+            mTimer = null;
+        }
+    }
+
+    // The preference is in seconds.  It may be missing on installs
+    // from before it existed, so fall back to the declared default.
+    private void setWalletChangeWindow(SharedPreferences sharedPref) {
+        String def = getString(R.string.pref_wallet_change_window_default);
+        String secs =
+            sharedPref.getString(SettingsActivity.KEY_WALLET_CHANGE_WINDOW,
+                                 def);
+        double window;
+        try {
+            window = Double.parseDouble(secs);
+        } catch (NumberFormatException ex) {
+            window = Double.parseDouble(def);
+        }
+        mWalletChangeWindow = (long) (window * 1000);
+    }
+
+    private synchronized void scheduleWalletChange() {
+        if (mWalletChangePending)
+            return;	// Already have a pass coming.
+        mWalletChangePending = true;
+
+        timer().schedule(new Runnable() {
+                public void run() {
+                    synchronized (WalletService.this) {
+                        mWalletChangePending = false;
+                    }
+                    // Run the pass in order with the other events.
+                    queueWalletChange();
                 }
-            }
-        };
+            }, mWalletChangeWindow, TimeUnit.MILLISECONDS);
+    }
+
+    // Queue a wallet-change pass unless one is already waiting to
+    // run; it will see this change too.
+    private void queueWalletChange() {
+        synchronized (this) {
+            if (mWalletChangeQueued)
+                return;
+            mWalletChangeQueued = true;
+        }
+        mEventExecutor.execute(new Runnable() {
+                public void run() {
+                    synchronized (WalletService.this) {
+                        mWalletChangeQueued = false;
+                    }
+                    processWalletChange();
+                }
+            });
+    }
+
+    private void processWalletChange() {
+        // A rescan may have torn things down since this was scheduled.
+        HDReceiver hdrecvr = mHDReceiver;
+        MyWalletAppKit kit = mKit;
+        if (hdrecvr == null || kit == null)
+            return;
+
+        // Update balances and transaction counts with whatever
+        // changed since the last pass.
+        Iterable<WalletTransaction> iwt = kit.wallet().getWalletTransactions();
+        hdrecvr.applyTransactionDeltas(iwt);
+        mHistory.update(iwt);
+
+        // Check to make sure we have sufficient margins.
+        int maxExtended = hdrecvr.ensureMargins(kit.wallet());
+
+        // Persist the new state in the background.
+        hdrecvr.persistLater();
+
+        Intent intent = new Intent("wallet-state-changed");
+        mLBM.sendBroadcast(intent);
+
+        if (maxExtended > HDChain.maxSafeExtend()) {
+            long rescanTime = hdrecvr.marginRescanTime();
+            mLogger.info(String.format("%d addresses added, "
+                                       + "rescanning from %d",
+                                       maxExtended, rescanTime));
+            rescanBlockchain(rescanTime);
+        }
+    }
 
     public void shutdown() {
         mLogger.info("shutdown");
+        noteStateTime();
         mState = State.SHUTDOWN;
+
+        // Make sure any pending state is on disk.
+        if (mHDReceiver != null)
+            mHDReceiver.flush();
+        dumpMetrics();
+
         try {
             if (mKit != null)
                 mKit.shutDown();
@@ -482,7 +684,7 @@ public class WalletService extends Service
 
             // Bail if we're being shutdown ...
             if (mState == State.SHUTDOWN) {
-                mHDReceiver.persist();
+                mHDReceiver.flush();
                 return null;
             }
 
@@ -496,12 +698,13 @@ public class WalletService extends Service
             Iterable<WalletTransaction> iwt =
                 mKit.wallet().getWalletTransactions();
             mHDReceiver.applyAllTransactions(iwt);
+            mHistory.update(iwt);
 
             // Check the margins again, since transactions may have arrived.
             int maxExtended = mHDReceiver.ensureMargins(mKit.wallet());
 
             // Persist the new state.
-            mHDReceiver.persist();
+            mHDReceiver.persistLater();
 
             // Listen for future wallet changes.
             mKit.wallet().addEventListener(mWalletListener);
@@ -519,13 +722,22 @@ public class WalletService extends Service
 
             // Do we need another rescan?
             if (maxExtended > HDChain.maxSafeExtend()) {
-                mLogger.info(String.format("rescan extended by %d, rescanning",
-                                           maxExtended));
-                rescanBlockchain(HDAddress.EPOCH);
+                long rescanTime = mHDReceiver.marginRescanTime();
+                mLogger.info(String.format("rescan extended by %d, "
+                                           + "rescanning from %d",
+                                           maxExtended, rescanTime));
+                rescanBlockchain(rescanTime);
             }
             else {
                 mLogger.info("synchronized");
                 setSyncState(SyncState.SYNCHRONIZED);
+
+                // Keep the file write off the UI thread.
+                timer().execute(new Runnable() {
+                        public void run() {
+                            dumpMetrics();
+                        }
+                    });
             }
         }
     }
@@ -560,6 +772,9 @@ public class WalletService extends Service
         String fiatRateSource =
             sharedPref.getString(SettingsActivity.KEY_FIAT_RATE_SOURCE, "");
         setFiatRateSource(fiatRateSource);
+        setWalletChangeWindow(sharedPref);
+        Metrics.setEnabled
+            (sharedPref.getBoolean(SettingsActivity.KEY_COLLECT_METRICS, true));
 
         // Register for future preference changes.
         sharedPref.registerOnSharedPreferenceChangeListener(this);
@@ -607,6 +822,8 @@ public class WalletService extends Service
         
         mIsRunning = false;
 
+        stopTimer();
+
         // FIXME - Where does this go?  Anywhere?
         // stopForeground(true);
 
@@ -622,6 +839,13 @@ public class WalletService extends Service
                 sharedPref.getString(SettingsActivity.KEY_FIAT_RATE_SOURCE, "");
             setFiatRateSource(fiatRateSource);
         }
+        else if (key.equals(SettingsActivity.KEY_WALLET_CHANGE_WINDOW)) {
+            setWalletChangeWindow(sharedPreferences);
+        }
+        else if (key.equals(SettingsActivity.KEY_COLLECT_METRICS)) {
+            Metrics.setEnabled(sharedPreferences.getBoolean
+                               (SettingsActivity.KEY_COLLECT_METRICS, true));
+        }
     }
 
     // Show a notification while this service is running.
@@ -653,10 +877,9 @@ public class WalletService extends Service
         startForeground(NOTIFICATION, note);
     }
 
-    private void showEventNotification(int noteId,
-                                       int icon,
-                                       String title,
-                                       String msg) {
+    private NotificationCompat.Builder eventNoteBuilder(int icon,
+                                                       String title,
+                                                       String msg) {
         NotificationCompat.Builder mBuilder =
             new NotificationCompat.Builder(this)
             .setSmallIcon(icon)
@@ -683,11 +906,151 @@ public class WalletService extends Service
             stackBuilder.getPendingIntent(0, PendingIntent.FLAG_UPDATE_CURRENT);
         mBuilder.setContentIntent(resultPendingIntent);
 
-        mNM.notify(noteId, mBuilder.build());
+        return mBuilder;
+    }
+
+    private void showEventNotification(int noteId,
+                                       int icon,
+                                       String title,
+                                       String msg) {
+        mNM.notify(noteId, eventNoteBuilder(icon, title, msg).build());
+    }
+
+    // Event notifications arriving within this many msecs of each
+    // other are merged into a single summary notification.
+    private static final long NOTE_BATCH_WINDOW = 1500;
+
+    // The summary is updated in place until the user opens the app.
+    private int NOTE_SUMMARY = R.string.wallet_service_note_summary_title;
+
+    private static class NoteEvent {
+        public final int	mSummaryRes;	// Summary line for this kind.
+        public final long	mAmount;
+        public final int	mNoteId;
+        public final int	mIcon;
+        public final String	mTitle;
+        public final String	mMsg;
+        public NoteEvent(int summaryRes, long amount,
+                         int noteId, int icon, String title, String msg) {
+            mSummaryRes = summaryRes;
+            mAmount = amount;
+            mNoteId = noteId;
+            mIcon = icon;
+            mTitle = title;
+            mMsg = msg;
+        }
+    }
+
+    private final ArrayList<NoteEvent> mNoteEvents = new ArrayList<NoteEvent>();
+
+    // Count and total of each kind of event in the summary, in order
+    // of appearance.  Guarded by mNoteEvents.
+    private final LinkedHashMap<Integer, long[]> mSummaryKinds =
+        new LinkedHashMap<Integer, long[]>();
+    private int mSummaryCount = 0;
+
+    // Queue an event notification.  If it turns out to be the only
+    // one in the window, and no summary is showing, it is shown under
+    // it's own noteId (so a confirm replaces the receive as before).
+    // Otherwise the events are added to the summary.
+    private void postEventNotification(int summaryRes, long amount,
+                                       int noteId, int icon,
+                                       String title, String msg) {
+        synchronized (mNoteEvents) {
+            mNoteEvents.add(new NoteEvent(summaryRes, amount,
+                                          noteId, icon, title, msg));
+            if (mNoteEvents.size() == 1)
+                timer().schedule(new Runnable() {
+                        public void run() {
+                            flushEventNotifications();
+                        }
+                    }, NOTE_BATCH_WINDOW, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushEventNotifications() {
+        ArrayList<NoteEvent> events;
+        LinkedHashMap<Integer, long[]> kinds =
+            new LinkedHashMap<Integer, long[]>();
+        int total;
+        synchronized (mNoteEvents) {
+            events = new ArrayList<NoteEvent>(mNoteEvents);
+            mNoteEvents.clear();
+
+            if (events.isEmpty())
+                return;
+
+            if (events.size() == 1 && mSummaryCount == 0) {
+                NoteEvent ev = events.get(0);
+                showEventNotification(ev.mNoteId, ev.mIcon,
+                                      ev.mTitle, ev.mMsg);
+                return;
+            }
+
+            for (NoteEvent ev : events) {
+                long[] counts = mSummaryKinds.get(ev.mSummaryRes);
+                if (counts == null) {
+                    counts = new long[2];
+                    mSummaryKinds.put(ev.mSummaryRes, counts);
+                }
+                counts[0] += 1;
+                counts[1] += ev.mAmount;
+            }
+            mSummaryCount += events.size();
+
+            for (Map.Entry<Integer, long[]> kind : mSummaryKinds.entrySet())
+                kinds.put(kind.getKey(), kind.getValue().clone());
+            total = mSummaryCount;
+        }
+
+        // The summary covers these now; drop any receive or send
+        // note they would have replaced.
+        for (NoteEvent ev : events)
+            mNM.cancel(ev.mNoteId);
+
+        WalletApplication app = (WalletApplication) getApplicationContext();
+        BTCFmt btcfmt = app.getBTCFmt();
+
+        NotificationCompat.InboxStyle style =
+            new NotificationCompat.InboxStyle();
+        StringBuilder text = new StringBuilder();
+        for (Map.Entry<Integer, long[]> kind : kinds.entrySet()) {
+            long[] counts = kind.getValue();
+            String line = mRes.getString(kind.getKey(),
+                                         (int) counts[0],
+                                         btcfmt.format(counts[1]),
+                                         btcfmt.unitStr());
+            style.addLine(line);
+            if (text.length() > 0)
+                text.append(", ");
+            text.append(line);
+        }
+
+        String title = mRes.getString(R.string.wallet_service_note_summary_title,
+                                      total);
+        mLogger.info("showing summary notification: " + text);
+
+        // Use the most recent event's icon.
+        NoteEvent last = events.get(events.size() - 1);
+        NotificationCompat.Builder builder =
+            eventNoteBuilder(last.mIcon, title, text.toString());
+        builder.setStyle(style.setBigContentTitle(title));
+        builder.setNumber(total);
+        mNM.notify(NOTE_SUMMARY, builder.build());
+    }
+
+    // Called when the user opens the app; later events start a new
+    // summary.
+    public void clearEventSummary() {
+        synchronized (mNoteEvents) {
+            mSummaryKinds.clear();
+            mSummaryCount = 0;
+        }
+        mNM.cancel(NOTE_SUMMARY);
     }
 
     public void persist() {
-        mHDReceiver.persist();
+        mHDReceiver.flush();
     }
 
     public void changePasscode(KeyParameter oldAesKey,
@@ -697,7 +1060,7 @@ public class WalletService extends Service
 
         // Change the parameters on our HDReceiver.
         // mHDReceiver.setPersistCrypter(keyCrypter, aesKey);
-        mHDReceiver.persist();
+        mHDReceiver.flush();
 
         mLogger.info("persisted HD wallet");
 
@@ -727,6 +1090,12 @@ public class WalletService extends Service
             mLogger.info("Switching to BitStamp USD");
             mRateUpdater = new BitStampRateUpdater(getApplicationContext());
         }
+        else if (src.equals("AGGREGATEUSD")) {
+            mLogger.info("Switching to aggregate USD");
+            mRateUpdater = new AggregateRateUpdater
+                (getApplicationContext(), "USD",
+                 RateSource.COINDESK_USD, RateSource.BITSTAMP_USD);
+        }
         else {
             mLogger.warn("Unknown fiat rate source " + src);
             return;
@@ -737,6 +1106,7 @@ public class WalletService extends Service
 
     public void rescanBlockchain(long rescanTime) {
         mLogger.info(String.format("RESCANNING from %d", rescanTime));
+        sRescans.inc();
 
         // Make sure we are in a good state for this.
         if (mState != State.READY) {
@@ -756,6 +1126,12 @@ public class WalletService extends Service
         // Remove our wallet event listener.
         mKit.wallet().removeEventListener(mWalletListener);
 
+        // The transactions are about to be cleared; stop watching them.
+        synchronized (mWatched) {
+            mWatched.clear();
+        }
+        mHistory.clear();
+
         // Persist and remove our HDReceiver.
         //
         // NOTE - It's best not to clear the balances here.  When the
@@ -763,7 +1139,7 @@ public class WalletService extends Service
         // disturbing to see negative historical balances.  They'll
         // get completely refigured when the sync is done anyway ...
         //
-        mHDReceiver.persist();
+        mHDReceiver.close();
         mHDReceiver = null;
 
         mLogger.info("resetting wallet state");
@@ -780,11 +1156,19 @@ public class WalletService extends Service
             return;
 		}
 
-        mLogger.info("removing spvchain file");
+        // If the stored headers reach back far enough just rewind the
+        // chain head; only the filtered blocks after it need to be
+        // downloaded again.  Otherwise start over from a checkpoint.
         File chainFile =
             new File(mContext.getFilesDir(), mFilePrefix + ".spvchain");
-        if (!chainFile.delete())
-            mLogger.error("delete of spvchain file failed");
+        if (MyWalletAppKit.rewindChainFile(mParams, chainFile, rescanTime)) {
+            mLogger.info("rewound spvchain file");
+        }
+        else {
+            mLogger.info("removing spvchain file");
+            if (!chainFile.delete())
+                mLogger.error("delete of spvchain file failed");
+        }
 
         mLogger.info("restarting wallet");
         WalletApplication wallapp = (WalletApplication) getApplicationContext();
@@ -825,6 +1209,43 @@ public class WalletService extends Service
         return mMsecsLeft;
     }
 
+    public double getSyncBlocksPerSecond() {
+        return mBlocksPerSec;
+    }
+
+    public int getEventQueueDepth() {
+        return mEventExecutor.getQueueDepth();
+    }
+
+    public long getEventLatency() {
+        return mEventExecutor.getLastLatency();
+    }
+
+    public long getAverageEventLatency() {
+        return mEventExecutor.getAverageLatency();
+    }
+
+    public int getMaxEventQueueDepth() {
+        return mEventExecutor.getMaxQueueDepth();
+    }
+
+    public long getMaxEventLatency() {
+        return mEventExecutor.getMaxLatency();
+    }
+
+    // Writes the current metrics to a file in the app's files
+    // directory and returns the text.
+    public String dumpMetrics() {
+        Metrics.gauge("wallet.event_queue_depth").set(getEventQueueDepth());
+        Metrics.gauge("wallet.event_queue_depth_max")
+            .set(getMaxEventQueueDepth());
+        Metrics.gauge("wallet.event_latency_avg").set(getAverageEventLatency());
+        Metrics.gauge("wallet.event_latency_max").set(getMaxEventLatency());
+        Metrics.dumpToFile(new File(mContext.getFilesDir(),
+                                    mFilePrefix + ".metrics"));
+        return Metrics.dump();
+    }
+
     public String getStateString() {
         switch (mState) {
         case SETUP:
@@ -867,6 +1288,10 @@ public class WalletService extends Service
         return mRateUpdater == null ? "???" : mRateUpdater.getCode();
     }
 
+    public long getRateAge() {
+        return mRateUpdater == null ? -1 : mRateUpdater.getRateAge();
+    }
+
     static public long getDefaultFee() {
         final BigInteger dmtf = Transaction.REFERENCE_DEFAULT_MIN_TX_FEE;
         return dmtf.longValue();
@@ -894,6 +1319,22 @@ public class WalletService extends Service
         return mKit.wallet().getWalletTransactions();
     }
 
+    // Returns up to count transactions starting at offset, most
+    // recent first, or null if the wallet isn't ready.
+    public List<WalletTransaction> getTransactionPage(int offset, int count) {
+        if (mHDReceiver == null)
+            return null;
+
+        if (mState != State.READY)
+            return null;
+
+        return mHistory.getPage(offset, count);
+    }
+
+    public int getTransactionCount() {
+        return mHistory.size();
+    }
+
     public Transaction getTransaction(String hashstr) {
         Sha256Hash hash = new Sha256Hash(hashstr);
         return mKit.wallet().getTransaction(hash);
@@ -933,10 +1374,19 @@ public class WalletService extends Service
         if (mState == State.SHUTDOWN)
             return;
         mLogger.info("setState " + getStateString());
+        noteStateTime();
         mState = newstate;
         sendStateChanged();
     }
 
+    // Charges the time since the last state change to the current state.
+    private void noteStateTime() {
+        long now = System.currentTimeMillis();
+        Metrics.counter("state." + mState.name().toLowerCase() + ".msecs")
+            .add(now - mStateTime);
+        mStateTime = now;
+    }
+
     private void sendStateChanged() {
         Intent intent = new Intent("wallet-state-changed");
         mLBM.sendBroadcast(intent);
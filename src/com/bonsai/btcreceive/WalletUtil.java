@@ -27,7 +27,6 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.util.Hashtable;
 import java.util.List;
 
 import org.bitcoinj.wallet.Protos;
@@ -38,8 +37,6 @@ import org.spongycastle.crypto.params.KeyParameter;
 import org.spongycastle.util.encoders.Hex;
 
 import android.content.Context;
-import android.graphics.Bitmap;
-import android.graphics.Color;
 
 import com.google.bitcoin.core.AddressFormatException;
 import com.google.bitcoin.core.Base58;
@@ -60,12 +57,6 @@ import com.google.bitcoin.params.MainNetParams;
 import com.google.bitcoin.script.Script;
 import com.google.bitcoin.script.ScriptBuilder;
 import com.google.protobuf.ByteString;
-import com.google.zxing.BarcodeFormat;
-import com.google.zxing.EncodeHintType;
-import com.google.zxing.WriterException;
-import com.google.zxing.common.BitMatrix;
-import com.google.zxing.qrcode.QRCodeWriter;
-import com.google.zxing.qrcode.decoder.ErrorCorrectionLevel;
 
 public class WalletUtil {
 
@@ -74,8 +65,6 @@ public class WalletUtil {
 
     private static final String filePrefix = "btcreceive";
 
-	private final static QRCodeWriter sQRCodeWriter = new QRCodeWriter();
-
     public static void setPasscode(Context context,
                                    WalletService walletService,
                                    String passcode,
@@ -162,44 +151,6 @@ public class WalletUtil {
         return Utils.reverseBytes(msgbytes);
     }
 
-    public static Bitmap createBitmap(String content, final int size) {
-        final Hashtable<EncodeHintType, Object> hints =
-            new Hashtable<EncodeHintType, Object>();
-        hints.put(EncodeHintType.MARGIN, 0);
-        hints.put(EncodeHintType.ERROR_CORRECTION, ErrorCorrectionLevel.H);
-        BitMatrix result;
-		try {
-			result = sQRCodeWriter.encode(content,
-                                          BarcodeFormat.QR_CODE,
-                                          size,
-                                          size,
-                                          hints);
-		} catch (WriterException ex) {
-            mLogger.warn("qr encoder failed: " + ex.toString());
-            return null;
-		}
-
-        final int width = result.getWidth();
-        final int height = result.getHeight();
-        final int[] pixels = new int[width * height];
-
-        for (int y = 0; y < height; y++)
-        {
-            final int offset = y * width;
-            for (int x = 0; x < width; x++)
-            {
-                pixels[offset + x] =
-                    result.get(x, y) ? Color.BLACK : Color.TRANSPARENT;
-            }
-        }
-
-        final Bitmap bitmap =
-            Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
-        bitmap.setPixels(pixels, 0, width, 0, 0, width, height);
-
-        return bitmap;
-    }
-
     // Thanks to devrandom!
     public static void signTransactionInputs(Transaction tx,
                                              SigHash hashType,